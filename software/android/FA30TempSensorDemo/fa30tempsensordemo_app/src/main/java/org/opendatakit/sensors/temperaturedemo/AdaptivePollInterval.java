@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+/**
+ * How long a SensorPoller waits before its next getSensorData call.
+ *
+ * The sensors service only hands out data when asked, and the board sends
+ * its readings at a steady rate. The interval between readings and its
+ * jitter are tracked, so after a reading the poller sleeps until shortly
+ * before the next one is due and then polls every minMillis until it
+ * arrives. While nothing arrives outside that window the interval doubles up
+ * to maxMillis, so a silent or disconnected probe costs few wakeups.
+ */
+final class AdaptivePollInterval {
+
+	static final long DEFAULT_MIN_MILLIS = 50;
+	static final long DEFAULT_MAX_MILLIS = 2000;
+
+	private final long minMillis;
+	private final long maxMillis;
+
+	private long lastDataMillis = -1;
+	private long periodMillis = -1; // smoothed time between readings, -1 until known
+	private long idleMillis;
+	private long jitterMillis; // smoothed deviation from periodMillis
+
+	AdaptivePollInterval() {
+		this(DEFAULT_MIN_MILLIS, DEFAULT_MAX_MILLIS);
+	}
+
+	AdaptivePollInterval(long minMillis, long maxMillis) {
+		this.minMillis = minMillis;
+		this.maxMillis = maxMillis;
+		this.idleMillis = minMillis;
+	}
+
+	/**
+	 * @param gotData whether the poll that just finished returned readings
+	 * @param now the current time, from a monotonic clock
+	 * @return the number of millisecs to wait before polling again
+	 */
+	long next(boolean gotData, long now) {
+		if(gotData) {
+			if(lastDataMillis >= 0) {
+				long observed = now - lastDataMillis;
+				if(periodMillis < 0) {
+					periodMillis = observed;
+				}
+				else {
+					// a missed reading or a pause should not throw the estimate off at once
+					long deviation = Math.min(observed, 2 * periodMillis) - periodMillis;
+					periodMillis += deviation / 8;
+					jitterMillis += (Math.abs(deviation) - jitterMillis) / 4;
+				}
+			}
+			lastDataMillis = now;
+			idleMillis = minMillis;
+			if(periodMillis < 0) {
+				return minMillis;
+			}
+			// wake up a little before the next reading is due
+			return clamp(periodMillis - 2 * jitterMillis - minMillis);
+		}
+
+		if(periodMillis >= 0 && now - lastDataMillis < periodMillis + periodMillis / 2) {
+			// the next reading is due
+			return minMillis;
+		}
+		idleMillis = Math.min(idleMillis * 2, maxMillis);
+		return idleMillis;
+	}
+
+	/** forgets the reading rate, e.g. after a reconnect */
+	void reset() {
+		lastDataMillis = -1;
+		periodMillis = -1;
+		idleMillis = minMillis;
+		jitterMillis = 0;
+	}
+
+	private long clamp(long millis) {
+		return Math.max(minMillis, Math.min(millis, maxMillis));
+	}
+}
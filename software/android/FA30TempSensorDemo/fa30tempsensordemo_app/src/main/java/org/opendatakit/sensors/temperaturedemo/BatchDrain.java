@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * How many readings a SensorPoller asks for per getSensorData call.
+ *
+ * Right after the sensor is started the service may hold a backlog, e.g.
+ * readings the board buffered while the phone was away. Until a call comes
+ * back with fewer than drainBatchSize readings the backlog is pulled in
+ * large batches with no pause between calls. After that, live readings are
+ * fetched liveBatchSize at a time. The time it took to catch up is logged
+ * and kept in getCatchUpMillis.
+ *
+ * Used by one SensorPoller, one poll at a time.
+ */
+final class BatchDrain {
+
+	private static final String TAG = "BatchDrain";
+
+	static final int DEFAULT_LIVE_BATCH_SIZE = 16;
+	static final int DEFAULT_DRAIN_BATCH_SIZE = 1024;
+
+	private final int liveBatchSize;
+	private final int drainBatchSize;
+
+	private boolean draining;
+	private long drainStartMillis = -1;
+	private long drainedReadings;
+	private int drainCalls;
+	private long catchUpMillis = -1;
+
+	BatchDrain() {
+		this(DEFAULT_LIVE_BATCH_SIZE, DEFAULT_DRAIN_BATCH_SIZE, true);
+	}
+
+	/**
+	 * @param drainOnStart false to fetch live batches from the start
+	 */
+	BatchDrain(int liveBatchSize, int drainBatchSize, boolean drainOnStart) {
+		this.liveBatchSize = Math.max(1, liveBatchSize);
+		this.drainBatchSize = Math.max(this.liveBatchSize, drainBatchSize);
+		this.draining = drainOnStart;
+	}
+
+	/** drains again, e.g. what the service buffered while polling was paused */
+	void restartDrain() {
+		draining = true;
+		drainStartMillis = -1;
+		drainedReadings = 0;
+		drainCalls = 0;
+	}
+
+	boolean isDraining() {
+		return draining;
+	}
+
+	int nextBatchSize() {
+		if(draining && drainStartMillis < 0) {
+			drainStartMillis = SystemClock.elapsedRealtime();
+		}
+		return draining ? drainBatchSize : liveBatchSize;
+	}
+
+	/** the number of readings the last call returned */
+	void batchReceived(int readings) {
+		if(!draining) {
+			return;
+		}
+		drainedReadings += readings;
+		++drainCalls;
+		if(readings < drainBatchSize) {
+			draining = false;
+			catchUpMillis = SystemClock.elapsedRealtime() - drainStartMillis;
+			Log.i(TAG, "caught up in " + catchUpMillis + " ms: " + drainedReadings + " readings in "
+					+ drainCalls + " calls");
+		}
+	}
+
+	/** millisecs from the first drain call until the backlog was empty, -1 until then */
+	long getCatchUpMillis() {
+		return catchUpMillis;
+	}
+}
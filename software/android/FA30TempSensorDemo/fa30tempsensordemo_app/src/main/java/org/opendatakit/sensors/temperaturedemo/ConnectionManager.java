@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Connects to the temperature sensor on a shared scheduled executor instead
+ * of a thread per attempt.
+ *
+ * States: IDLE -> CONNECTING -> CONNECTED, or FAILED after maxAttempts.
+ * An attempt asks the sensors service to connect and then checks
+ * isConnected, first after FIRST_CHECK_MILLIS and then at doubling
+ * intervals up to MAX_CHECK_MILLIS, so a link that comes up quickly is seen
+ * within tens of millisecs. An attempt that is not connected after
+ * attemptTimeoutMillis is retried after an exponential backoff. All delays
+ * are jittered by up to a quarter so retries of several phones do not line
+ * up.
+ *
+ * cancel() never blocks: the calls to the sensors service are made outside
+ * the lock, and tasks of a cancelled or superseded connect find a newer
+ * generation when they take it again and do nothing. The listener is called on the executor
+ * thread, or on the caller's thread for the changes made by connect and
+ * cancel.
+ */
+class ConnectionManager {
+
+	private static final String TAG = "ConnectionManager";
+
+	interface Listener {
+		void onConnectionStateChanged(int state);
+	}
+
+	static final int IDLE = 0;
+	static final int CONNECTING = 1;
+	static final int CONNECTED = 2;
+	static final int FAILED = 3;
+
+	static final long FIRST_CHECK_MILLIS = 25;
+	static final long MAX_CHECK_MILLIS = 1000;
+	static final long DEFAULT_ATTEMPT_TIMEOUT_MILLIS = 10 * 1000;
+	static final long FIRST_RETRY_MILLIS = 1000;
+	static final long MAX_RETRY_MILLIS = 8 * 1000;
+	static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	private final TempAcquisitionService acquisitionService;
+	private final ScheduledExecutorService executor;
+	private final Listener listener;
+	private final long attemptTimeoutMillis;
+	private final int maxAttempts;
+	private final Random random = new Random();
+
+	// guarded by this
+	private int state = IDLE;
+	private int generation = 0;
+	private String sensorID;
+	private int attempt;
+	private long attemptDeadline;
+	private long checkMillis;
+	private ScheduledFuture<?> pending;
+
+	ConnectionManager(TempAcquisitionService acquisitionService, ScheduledExecutorService executor, Listener listener) {
+		this(acquisitionService, executor, listener, DEFAULT_ATTEMPT_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	ConnectionManager(TempAcquisitionService acquisitionService, ScheduledExecutorService executor, Listener listener,
+			long attemptTimeoutMillis, int maxAttempts) {
+		this.acquisitionService = acquisitionService;
+		this.executor = executor;
+		this.listener = listener;
+		this.attemptTimeoutMillis = attemptTimeoutMillis;
+		this.maxAttempts = maxAttempts;
+	}
+
+	synchronized int getState() {
+		return state;
+	}
+
+	/** starts connecting to sensorID, replacing any connect in progress */
+	synchronized void connect(String sensorID) {
+		cancelPending();
+		this.sensorID = sensorID;
+		attempt = 0;
+		setState(CONNECTING);
+		schedule(new Step(generation, Step.CONNECT), 0);
+	}
+
+	/** stops connecting; a sensor that is already connected stays connected */
+	synchronized void cancel() {
+		cancelPending();
+		if(state == CONNECTING) {
+			setState(IDLE);
+		}
+	}
+
+	private void cancelPending() {
+		++generation;
+		if(pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	private final class Step implements Runnable {
+		static final int CONNECT = 0;
+		static final int CHECK = 1;
+
+		private final int stepGeneration;
+		private final int action;
+
+		Step(int stepGeneration, int action) {
+			this.stepGeneration = stepGeneration;
+			this.action = action;
+		}
+
+		public void run() {
+			String id;
+			synchronized(ConnectionManager.this) {
+				if(stepGeneration != generation) {
+					return;
+				}
+				pending = null;
+				if(action == CONNECT) {
+					startAttempt();
+				}
+				id = sensorID;
+			}
+			// the sensors service calls are made without the lock, so cancel and getState never wait for them
+			boolean connected;
+			try {
+				if(action == CONNECT) {
+					acquisitionService.requestConnect(id);
+				}
+				connected = acquisitionService.isSensorConnected(id);
+			}
+			catch(RemoteException rex) {
+				Log.d(TAG,"sensors service call failed: " + rex.getMessage());
+				synchronized(ConnectionManager.this) {
+					if(stepGeneration == generation) {
+						retryOrFail();
+					}
+				}
+				return;
+			}
+			synchronized(ConnectionManager.this) {
+				// cancelled or superseded meanwhile
+				if(stepGeneration != generation) {
+					return;
+				}
+				checked(connected);
+			}
+		}
+	}
+
+	private void startAttempt() {
+		++attempt;
+		Log.d(TAG,"connect attempt " + attempt + " to " + sensorID);
+		attemptDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(attemptTimeoutMillis);
+		checkMillis = FIRST_CHECK_MILLIS;
+	}
+
+	private void checked(boolean connected) {
+		if(connected) {
+			Log.d(TAG,"connected to " + sensorID);
+			setState(CONNECTED);
+			return;
+		}
+		long remainingMillis = TimeUnit.NANOSECONDS.toMillis(attemptDeadline - System.nanoTime());
+		if(remainingMillis <= 0) {
+			retryOrFail();
+			return;
+		}
+		schedule(new Step(generation, Step.CHECK), Math.min(jitter(checkMillis), remainingMillis));
+		checkMillis = Math.min(checkMillis * 2, MAX_CHECK_MILLIS);
+	}
+
+	private void retryOrFail() {
+		if(attempt >= maxAttempts) {
+			Log.d(TAG,"giving up on " + sensorID + " after " + attempt + " attempts");
+			setState(FAILED);
+			return;
+		}
+		long backoff = Math.min(FIRST_RETRY_MILLIS << (attempt - 1), MAX_RETRY_MILLIS);
+		schedule(new Step(generation, Step.CONNECT), jitter(backoff));
+	}
+
+	private void schedule(Step step, long delayMillis) {
+		pending = executor.schedule(step, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// delay -/+ up to a quarter
+	private long jitter(long delayMillis) {
+		long spread = delayMillis / 4;
+		if(spread == 0) {
+			return delayMillis;
+		}
+		return delayMillis - spread + (long) (random.nextDouble() * 2 * spread);
+	}
+
+	private void setState(int newState) {
+		if(state == newState) {
+			return;
+		}
+		state = newState;
+		listener.onConnectionStateChanged(newState);
+	}
+}
@@ -17,48 +17,83 @@
 package org.opendatakit.sensors.temperaturedemo;
 
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import org.opendatakit.sensors.service.BaseActivity;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
-public class DisplayTempActivity extends BaseActivity {
+/**
+ * Shows the procedure run by TempAcquisitionService. The activity binds to
+ * the service for as long as it exists and lets it reach the sensors
+ * through BaseActivity (see SensorAccess); leaving it does not stop the
+ * sensors.
+ */
+public class DisplayTempActivity extends BaseActivity implements SensorAccess, TempAcquisitionService.Client {
 
 	private static final String TAG = "HMBActivity";
-	private final int SENSOR_CONNECTION_COUNTER = 20;		
 	
-	static final String TEMP_SENSOR_ID_STR = "tempSensorID";
+	// the file getPreferences uses, shared with TempAcquisitionService
+	static final String PREFERENCES_NAME = "DisplayTempActivity";
+	
+	static final String TEMP_SENSOR_ID_STR = "tempSensorID"; // the one sensor of older versions
+	static final String TEMP_SENSOR_IDS_STR = "tempSensorIDs"; // comma separated
+	
+	//preferences for fetching readings, see BatchDrain
+	static final String LIVE_BATCH_SIZE_STR = "liveBatchSize";
+	static final String DRAIN_BATCH_SIZE_STR = "drainBatchSize";
+	static final String DRAIN_ON_START_STR = "drainOnStart";
+	
+	//preferences for the temperature alarm, see TempStats
+	static final String ALARM_LOW_TEMP_STR = "alarmLowTemp";
+	static final String ALARM_HIGH_TEMP_STR = "alarmHighTemp";
+	static final String ALARM_HYSTERESIS_STR = "alarmHysteresis";
+	static final String ALARM_DEBOUNCE_MILLIS_STR = "alarmDebounceMillis";
+	static final float DEFAULT_ALARM_LOW_TEMP = 2.0f;
+	static final float DEFAULT_ALARM_HIGH_TEMP = 8.0f;
+	static final float DEFAULT_ALARM_HYSTERESIS = 0.5f;
+	static final long DEFAULT_ALARM_DEBOUNCE_MILLIS = 30 * 1000;
+	
+	//preferences for the probe resolution, see TempSamples.SETTING_RESOLUTION. unset leaves the
+	//board at its own setting, 12 bits and one reading per second
+	static final String RESOLUTION_BITS_STR = "resolutionBits";
+	static final String SAMPLING_INTERVAL_MILLIS_STR = "samplingIntervalMillis";
 	
 	//display messages
 	static final String CONN_SUCCESS = "Press 'Start' to begin";
-	static final String CONN_ERROR = "Connection error.\nPlease try again.\nMake sure probe is turned on";
+	static final String ALARM_HIGH_MSG = "Temperature above ";
+	static final String ALARM_LOW_MSG = "Temperature below ";
 	static final char DEGREE_SYMBOL = '\u00B0';
 	
-	static final String INITIAL_TEMPERATURE = "0.0" + DEGREE_SYMBOL + "C";									
-	
-	TextView tempFieldView, timeElapsedField;
+	TextView timeElapsedField;
 	
 	private TextView connectionStatus;
+	private ListView tempList;
 	Button startButton;	
 	
-	private WorkerThread workerThread;
-	private ConnectionThread connectionThread;
-	private String tempSensorID;
-	private boolean startState = false;	
+	// main thread only
+	private final Set<String> alarmedSensors = new HashSet<String>();
+	private TempDisplay tempDisplay;
+	private TempAcquisitionService acquisition;
 	
 	/** Called when the activity is first created. */
 	@Override
@@ -69,24 +104,44 @@ public class DisplayTempActivity extends BaseActivity {
 		setContentView(R.layout.temperature_view);
 
 		startButton = (Button)findViewById(R.id.startButton);
-		tempFieldView = (TextView) findViewById(R.id.tempField);		
 		connectionStatus = (TextView) findViewById(R.id.connectionStatus);
 		timeElapsedField = (TextView) findViewById(R.id.timeElapsedField);
+		tempList = (ListView) findViewById(R.id.tempList);
 		
 		hideWidgets();
-		startButton.setEnabled(true);
+		startButton.setEnabled(false);
 		
-		SharedPreferences appPreferences = getPreferences(MODE_PRIVATE);
-
-		if(tempSensorID == null) { //this just gets me around for testing, can hard code ID before this. 
-			if(appPreferences.contains(TEMP_SENSOR_ID_STR)) {
-				tempSensorID = appPreferences.getString(TEMP_SENSOR_ID_STR, null);
-				if(tempSensorID != null) {
-					Log.d(TAG,"restored tempsensorID: " + tempSensorID);
-				}
+		tempDisplay = new TempDisplay(this, tempList);
+		tempList.setOnItemClickListener(sensorClickListener);
+		tempList.setOnItemLongClickListener(sensorLongClickListener);
+		
+		bindService(new Intent(this, TempAcquisitionService.class), acquisitionConnection, Context.BIND_AUTO_CREATE);
+	}
+	
+	private final ServiceConnection acquisitionConnection = new ServiceConnection() {
+		
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			Log.d(TAG,"acquisition service connected");
+			acquisition = ((TempAcquisitionService.LocalBinder) service).getService();
+			
+			List<String> sensorIDs = acquisition.getSensorIDs();
+			for(String sensorID : sensorIDs) {
+				tempDisplay.addSensor(sensorID);
 			}
+			if(acquisition.isStarted()) {
+				startButton.setEnabled(false);
+				tempDisplay.startProcedure(acquisition.getStartMillis());
+			}
+			// shows the state, alarms and recent readings the service has
+			acquisition.attach(DisplayTempActivity.this, DisplayTempActivity.this, tempDisplay);
+			showAcquisitionState();
 		}
-	}
+		
+		public void onServiceDisconnected(ComponentName name) {
+			// same process, only when it dies
+			acquisition = null;
+		}
+	};
 	
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
@@ -130,17 +185,24 @@ public class DisplayTempActivity extends BaseActivity {
 		super.onResume();
 		Log.d(TAG,"onResume");
 
-		if(tempSensorID == null)  {
+		// on the first resume the service is not bound yet, see acquisitionConnection
+		if(acquisition != null) {
+			showAcquisitionState();
+		}
+	}
+	
+	private void showAcquisitionState() {
+		if(acquisition.getSensorIDs().isEmpty())  {
 //			launchSensorDiscovery();
 			this.showDiscoveryDialogMsg();
 
 		}		
 		else {
 
-			if(workerThread == null || !workerThread.getIsWorkerRunning()) {
+			if(!acquisition.isStarted()) {
 				startButton.setEnabled(true);
-				showWidgets();
 			}
+			showWidgets();
 		}
 	}
 
@@ -148,8 +210,9 @@ public class DisplayTempActivity extends BaseActivity {
 	public void onPause() {
 		super.onPause();
 		Log.d(TAG,"onPause");
-		if(connectionThread != null && connectionThread.isAlive())
-			connectionThread.stopConnectionThread();
+		if(acquisition != null) {
+			acquisition.cancelConnects();
+		}
 	}
 
 	@Override
@@ -158,121 +221,127 @@ public class DisplayTempActivity extends BaseActivity {
 		Log.d(TAG,"onStop");
 	}
 
+	/**
+	 * Pauses the procedure in TempAcquisitionService, which keeps the sensors
+	 * connected until the activity is back.
+	 */
 	@Override
 	public void onDestroy() {
-		Log.e(TAG,"onDestroy");
-//		super.onDestroy();
-		applicationShutdownActions();
+		Log.d(TAG,"onDestroy");
+		if(acquisition != null) {
+			acquisition.detach(this);
+			acquisition = null;
+		}
+		unbindService(acquisitionConnection);
+		super.onDestroy();
 	}
 	
-	@Override 
-	public void onBackPressed() {
-		Log.d(TAG,"onBackPressed");
-		applicationShutdownActions();
+	public List<Bundle> getSensorData(String sensorID, BatchDrain batchDrain) throws RemoteException {
+		
+		return super.getSensorData(sensorID, batchDrain.nextBatchSize());
 	}
 	
-	List<Bundle> getSensorData(String sensorID) throws RemoteException {
-		
-		return super.getSensorData(sensorID,1);		
+	public void requestConnect(String sensorID) throws RemoteException {
+		sensorConnect(sensorID);
+	}
+	
+	public boolean isSensorConnected(String sensorID) throws RemoteException {
+		return isConnected(sensorID);
+	}
+	
+	public void requestStart(String sensorID) throws RemoteException {
+		startSensor(sensorID, true, "default");
+	}
+	
+	public void requestStop(String sensorID) throws RemoteException {
+		stopSensor(sensorID);
+	}
+	
+	public void requestConfigure(String sensorID, String setting, Bundle params) throws RemoteException {
+		configure(sensorID, setting, params);
 	}
 	
 	public void enableStartButton() {
 		startButton.setEnabled(true);
 	}
 	
+	/** stops the procedure and the sensors, then closes the app */
 	public void applicationShutdownActions() {
 
-		Log.e(TAG,"activityShutdownActions");
-		
+		Log.d(TAG,"activityShutdownActions");
 		
-		if(workerThread != null && workerThread.isCancelled() ) {
-			workerThread.stopWorker();			
+		if(acquisition != null) {
+			acquisition.stopProcedure();
 		}
-		
-		if(connectionThread != null && connectionThread.isAlive() ) {
-			connectionThread.stopConnectionThread();
-		}
-		
-		try {			
-			if(tempSensorID != null)
-				stopSensor(tempSensorID);
-		}
-		catch(RemoteException rex) {
-			Log.d(TAG,"in activityShutdownActions. mwProxy.stopSensor raised exception");
-		}
-		
-//		finish();
-		super.onDestroy();
-		
-		System.runFinalizersOnExit(true);
-		System.exit(0);				
+		finish();
 	}
 		
 	public void startAction(View view) {
-		if(tempSensorID == null) {
+		if(acquisition == null) {
+			return;
+		}
+		if(acquisition.getSensorIDs().isEmpty()) {
 //			launchSensorDiscovery();
 			this.showDiscoveryDialogMsg();
 		}
 		else {
-			try {
-				if (!isConnected(tempSensorID)) {			
-					startConnectionThread();
-					return; 
-				}
+			connectionStatus.setVisibility(View.INVISIBLE);
 
-				connectionStatus.setVisibility(View.INVISIBLE);
-
-				if (!startState) {    			
-					doStartActions();
-				}
-
-				else {
-//					doStopActions();
-//					stopProcedure();
-//					stopBeeping();
-				}
+			if (!acquisition.isStarted()) {    			
+				doStartActions();
 			}
-			catch(RemoteException rex) {
-				rex.printStackTrace();
+
+			else {
+//				doStopActions();
+//				stopProcedure();
+				acquisition.silenceAlarm();
 			}
 		}
 	}		
 	
 	private void stopProcedure() {
-		if(workerThread != null)
-			workerThread.stopWorker();
+		if(acquisition == null) {
+			return;
+		}
+		acquisition.stopProcedure();
+		alarmedSensors.clear();
 		
-		try {
-			doStopActions();
+		doStopActions();
+	}
+	
+	/** the message is about the latest sensor in alarm; TempAcquisitionService sounds the alarm */
+	public void showAlarm(String sensorID, int alarm) {
+		tempDisplay.setAlarm(sensorID, alarm);
+		if(alarm == TempStats.ALARM_NONE) {
+			alarmedSensors.remove(sensorID);
+			if(alarmedSensors.isEmpty()) {
+				connectionStatus.setVisibility(View.INVISIBLE);
+			}
+			return;
+		}
+		alarmedSensors.add(sensorID);
+		SharedPreferences appPreferences = getPreferences(MODE_PRIVATE);
+		if(alarm == TempStats.ALARM_HIGH) {
+			connectionStatus.setText(ALARM_HIGH_MSG
+					+ appPreferences.getFloat(ALARM_HIGH_TEMP_STR, DEFAULT_ALARM_HIGH_TEMP) + DEGREE_SYMBOL + "C: " + sensorID);
 		}
-		catch(RemoteException rex) {
-			rex.printStackTrace();
+		else {
+			connectionStatus.setText(ALARM_LOW_MSG
+					+ appPreferences.getFloat(ALARM_LOW_TEMP_STR, DEFAULT_ALARM_LOW_TEMP) + DEGREE_SYMBOL + "C: " + sensorID);
 		}
+		connectionStatus.setVisibility(View.VISIBLE);
 	}
-	
-//	private void stopBeeping() {
-////		workerThread.disableBeeping();
-//		startButton.setEnabled(false);
-//	}
 
-	private void doStartActions() throws RemoteException {
-		
-		startSensor(tempSensorID, true, "default");
-				
-		startWorkerThread();
+	private void doStartActions() {
 		
 		startButton.setEnabled(false);
-		startState = true;
 		
-		tempFieldView.setText(INITIAL_TEMPERATURE);
+		acquisition.startProcedure();
+		tempDisplay.startProcedure(acquisition.getStartMillis());
 		showWidgets();
 	}
 
-	void doStopActions() throws RemoteException {		
-		stopSensor(tempSensorID);
-		
-		startState = false;
-		
+	void doStopActions() {		
 		runOnUiThread(new Runnable() {
 			public void run() {
 				startButton.setText("Start");
@@ -312,118 +381,57 @@ public class DisplayTempActivity extends BaseActivity {
 	};
 		
 	private void hideWidgets() {
-		tempFieldView.setVisibility(View.INVISIBLE);
+		tempList.setVisibility(View.INVISIBLE);
 		connectionStatus.setVisibility(View.INVISIBLE);
 	}
 	
 	private void showWidgets() {
-		tempFieldView.setVisibility(View.VISIBLE);
-		connectionStatus.setVisibility(View.INVISIBLE);
-	}
-	
-	private void startWorkerThread() {
-		workerThread = new WorkerThread(this,tempSensorID); 
-	}
-	
-	private void startConnectionThread() {
-		if(connectionThread != null && connectionThread.isAlive()) {
-			connectionThread.stopConnectionThread();
+		tempList.setVisibility(View.VISIBLE);
+		if(alarmedSensors.isEmpty()) {
+			connectionStatus.setVisibility(View.INVISIBLE);
 		}
-		
-		hideWidgets();		
-		
-		connectionThread = new ConnectionThread(this);
-		connectionThread.start();
 	}
 	
-	
-	class ConnectionThread extends Thread {
-		private String TAG = "ConnectionThread";
-		private boolean isConnectedToSensor, isConnThreadRunning;
-		private ProgressDialog connectingDlg;
-		private Context appContext;
+	private final AdapterView.OnItemClickListener sensorClickListener = new AdapterView.OnItemClickListener() {
 		
-		public ConnectionThread(Context context) {
-			super("Connection Thread");
-			appContext = context;
-		}
-		
-		@Override
-		public void start() {
-			isConnThreadRunning = true;
-			
-			connectingDlg = ProgressDialog.show(appContext, "Progress",
-					"Connecting. Please wait...", true);
-			super.start();
-		}
-		
-		public void stopConnectionThread() {				
-			isConnThreadRunning = false;
-
-			try {
-				this.interrupt();
-				isConnectedToSensor = false;
-				Thread.sleep(250);
+		public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+			if(acquisition != null) {
+				acquisition.connect(tempDisplay.getSensorID(position));
 			}
-			catch(InterruptedException iex) {
-				Log.d(TAG,"stopConnectionThread got interrupted");
-			}
-
-			if(connectingDlg != null) 
-				connectingDlg.dismiss();
 		}
-
-		public void run() {
-			int connectCntr = 0;
-						
-			try {				
-				sensorConnect(tempSensorID);
-			
-			while (isConnThreadRunning && (connectCntr++ < SENSOR_CONNECTION_COUNTER)) {						
-				try {					
-
-					if(isConnected(tempSensorID)) {
-						isConnectedToSensor = true;
-						break;
-					}
-					Log.d(TAG,"connectThread waiting to connect to sensor");
-					Thread.sleep(1000);    					
-				}
-				catch(InterruptedException iex) {
-					Log.d(TAG, "interrupted");	
-				}
+	};
+	
+	private final AdapterView.OnItemLongClickListener sensorLongClickListener = new AdapterView.OnItemLongClickListener() {
+		
+		public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+			if(acquisition == null || acquisition.isStarted()) {
+				return false;
 			}
-
-			Log.d(TAG,"connectThread connect status: " + isConnectedToSensor);
-
-			runOnUiThread(new Runnable() {
-				public void run() {
-					if(connectingDlg != null) {
-						connectingDlg.dismiss();
-					}
-					if(isConnectedToSensor) {
-//						startButton.setEnabled(true);
-						connectionStatus.setText(CONN_SUCCESS);
-						connectionStatus.setVisibility(View.VISIBLE);
-						try {
-							doStartActions();						
+			final String sensorID = tempDisplay.getSensorID(position);
+			new AlertDialog.Builder(DisplayTempActivity.this)
+					.setMessage("Remove " + sensorID + "?")
+					.setPositiveButton("Remove", new DialogInterface.OnClickListener() {
+						public void onClick(DialogInterface dialog, int whichButton) {
+							if(acquisition != null) {
+								acquisition.removeSensor(sensorID);
+							}
+							tempDisplay.removeSensor(sensorID);
 						}
-						catch(RemoteException rex) {
-							rex.printStackTrace();
-						}
-					}
-					else {
-						connectionStatus.setText(CONN_ERROR);
-						connectionStatus.setVisibility(View.VISIBLE);
-					}
-				}});    			    			
-			}
-			catch(RemoteException rex) {
-				rex.printStackTrace();
-			}
+					})
+					.setNegativeButton("Cancel", null)
+					.show();
+			return true;
+		}
+	};
+	
+	public void showConnectionState(String sensorID, int state) {
+		tempDisplay.setState(sensorID, state);
+		if(state == ConnectionManager.CONNECTED && !acquisition.isStarted()) {
+			connectionStatus.setText(CONN_SUCCESS);
+			connectionStatus.setVisibility(View.VISIBLE);
 		}
 	}
-
+	
 	@Override
 	protected void onActivityResult (int requestCode, int resultCode, Intent data)
 	{
@@ -434,32 +442,32 @@ public class DisplayTempActivity extends BaseActivity {
 			//from addSensorActvitity
 			if (resultCode == RESULT_OK) {	
 				// Get sensor id and state from result
+				String sensorID = null;
 				if (data.hasExtra("sensor_id"))
-					tempSensorID = data.getStringExtra("sensor_id");
-				else
-					tempSensorID = null;
+					sensorID = data.getStringExtra("sensor_id");
 
-				if(tempSensorID != null ) {
-					Log.d(TAG, "sensor discovered: " + tempSensorID);
+				if(sensorID != null) {
+					if(acquisition == null) {
+						// not bound yet, the sensor is lost
+						Log.e(TAG, "sensor discovered before the service was bound: " + sensorID);
+						return;
+					}
+					Log.d(TAG, "sensor discovered: " + sensorID);
 
-					SharedPreferences.Editor prefsEditor = getPreferences(MODE_PRIVATE).edit();
-					prefsEditor.putString(TEMP_SENSOR_ID_STR, tempSensorID);
-					if(prefsEditor.commit()) 
-						Log.d(TAG,"saved tempSensorID to preferences");
-					else 
-						Log.e(TAG,"preferences commit failed for tempSensorID");
+					acquisition.addSensor(sensorID);
+					tempDisplay.addSensor(sensorID);
 
-					try {
-						// Initiate connection
-						sensorConnect(tempSensorID);
-						startConnectionThread();
+					// Initiate connection, starting the procedure if it is not running
+					if(!acquisition.isStarted()) {
+						doStartActions();
 					}
-					catch(RemoteException rex) {
-						rex.printStackTrace();
+					else {
+						acquisition.connect(sensorID);
 					}
 				}
 				else {
-					tempFieldView.setText("activity result returned without sensorID");
+					connectionStatus.setText("activity result returned without sensorID");
+					connectionStatus.setVisibility(View.VISIBLE);
 				}
 			}
 		}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.temperaturedemo;
+
+/**
+ * The last readings of one sensor in a ring buffer, so an activity that
+ * attaches to TempAcquisitionService shows them at once instead of waiting
+ * for the next poll.
+ *
+ * Not thread safe; TempAcquisitionService guards it.
+ */
+final class RecentReadings {
+
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private final float[] values;
+	private final long[] timeNanos;
+	private final long[] probeIds;
+	private int next;
+	private int size;
+
+	RecentReadings() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	RecentReadings(int capacity) {
+		values = new float[capacity];
+		timeNanos = new long[capacity];
+		probeIds = new long[capacity];
+	}
+
+	void addAll(TempSamples samples) {
+		int capacity = values.length;
+		// only the newest capacity readings survive
+		for(int i = Math.max(0, samples.size() - capacity); i < samples.size(); i++) {
+			values[next] = samples.getValue(i);
+			timeNanos[next] = samples.getTimeNanos(i);
+			probeIds[next] = samples.getProbeId(i);
+			next = (next + 1) % capacity;
+		}
+		size = Math.min(capacity, size + samples.size());
+	}
+
+	void clear() {
+		next = 0;
+		size = 0;
+	}
+
+	/** replaces the contents of dst with the readings, oldest first */
+	void copyTo(TempSamples dst) {
+		dst.clear();
+		int capacity = values.length;
+		for(int i = next - size + capacity; i < next + capacity; i++) {
+			int index = i % capacity;
+			dst.add(values[index], timeNanos[index], probeIds[index]);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.List;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+
+/**
+ * The calls to the ODK Sensors service that acquisition needs. Only a
+ * BaseActivity is bound to that service, so the DisplayTempActivity that is
+ * attached to TempAcquisitionService makes them on its behalf.
+ *
+ * Called on executor threads as well as the main thread.
+ */
+interface SensorAccess {
+
+	List<Bundle> getSensorData(String sensorID, BatchDrain batchDrain) throws RemoteException;
+
+	void requestConnect(String sensorID) throws RemoteException;
+
+	boolean isSensorConnected(String sensorID) throws RemoteException;
+
+	void requestStart(String sensorID) throws RemoteException;
+
+	void requestStop(String sensorID) throws RemoteException;
+
+	void requestConfigure(String sensorID, String setting, Bundle params) throws RemoteException;
+}
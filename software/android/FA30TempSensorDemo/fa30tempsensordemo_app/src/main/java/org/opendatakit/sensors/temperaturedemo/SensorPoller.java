@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Polls the sensors service for the readings of one sensor and hands them to
+ * each TempSampleListener as soon as they arrive.
+ *
+ * The ODK Sensors framework has no callback for new data, so the readings
+ * are still pulled with getSensorData. Each poll is one task on an executor
+ * shared by all sensors; the poll schedules the next one when it is done,
+ * so a sensor never has more than one poll queued or running however slow
+ * the service or the pool is. AdaptivePollInterval times the polls around
+ * the board's reading rate and BatchDrain sizes them. A backlog is drained
+ * one batch per task with no delay, so other sensors get their turn between
+ * batches.
+ *
+ * While the recorder is backlogged the poll is put off by
+ * BACKPRESSURE_MILLIS and the readings wait in the sensors service, which
+ * buffers them per sensor, instead of being dropped by the recorder.
+ *
+ * When no readings arrive for LINK_CHECK_MILLIS the poller asks whether the
+ * sensor is still connected and reports a lost link to the
+ * TempAcquisitionService, which reconnects. The check interval doubles up to MAX_LINK_CHECK_MILLIS while
+ * the link stays down.
+ */
+class SensorPoller implements Runnable {
+
+	private static final String TAG = "SensorPoller";
+
+	static final long LINK_CHECK_MILLIS = 3000;
+	static final long MAX_LINK_CHECK_MILLIS = 60 * 1000;
+	static final long BACKPRESSURE_MILLIS = 250;
+
+	private final TempAcquisitionService acquisitionService;
+	private final String sensorID;
+	private final ScheduledExecutorService executor;
+	private final BatchDrain batchDrain;
+	private final TempRecorder recorder;
+	private final TempSampleListener[] listeners;
+
+	// executor threads, one poll at a time
+	private final TempSamples samples = new TempSamples();
+	private final AdaptivePollInterval pollInterval = new AdaptivePollInterval();
+	private long lastDataMillis;
+	private long linkCheckMillis = LINK_CHECK_MILLIS;
+	private long nextLinkCheck;
+
+	// guarded by this
+	private boolean running = false;
+	private boolean polling = false;
+	private boolean drainOnResume = false;
+	private ScheduledFuture<?> pending;
+
+	/**
+	 * @param recorder polls wait while it is backlogged, may be null. It
+	 *        only gets readings if it is one of the listeners as well.
+	 */
+	SensorPoller(TempAcquisitionService acquisitionService, String sensorID, ScheduledExecutorService executor,
+			BatchDrain batchDrain, TempRecorder recorder, TempSampleListener... listeners) {
+		this.acquisitionService = acquisitionService;
+		this.sensorID = sensorID;
+		this.executor = executor;
+		this.batchDrain = batchDrain;
+		this.recorder = recorder;
+		this.listeners = listeners;
+	}
+
+	String getSensorID() {
+		return sensorID;
+	}
+
+	synchronized void start() {
+		if(running) {
+			return;
+		}
+		Log.d(TAG, "polling " + sensorID);
+		running = true;
+		lastDataMillis = SystemClock.elapsedRealtime();
+		nextLinkCheck = lastDataMillis + linkCheckMillis;
+		if(!polling) {
+			schedule(0);
+		}
+	}
+
+	/** starts again after stop, first draining what the service buffered meanwhile */
+	synchronized void resume() {
+		if(running) {
+			return;
+		}
+		drainOnResume = true;
+		start();
+	}
+
+	/** stops polling; a poll that is running finishes but schedules no other */
+	synchronized void stop() {
+		running = false;
+		if(pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	synchronized boolean isRunning() {
+		return running;
+	}
+
+	/** polls again soon, e.g. after a reconnect when readings are expected */
+	synchronized void pollNow() {
+		if(!running) {
+			return;
+		}
+		// while a poll is pending none is running, so the interval is ours
+		if(pending != null && pending.cancel(false)) {
+			pollInterval.reset();
+			schedule(0);
+		}
+	}
+
+	public void run() {
+		boolean drain;
+		synchronized(this) {
+			if(!running) {
+				return;
+			}
+			pending = null;
+			polling = true;
+			drain = drainOnResume;
+			drainOnResume = false;
+		}
+		long delay;
+		try {
+			if(drain) {
+				batchDrain.restartDrain();
+			}
+			delay = poll();
+		}
+		catch(RuntimeException rex) {
+			// keep polling; the executor would drop a task that throws
+			Log.e(TAG, "poll of " + sensorID + " failed", rex);
+			delay = AdaptivePollInterval.DEFAULT_MAX_MILLIS;
+		}
+		synchronized(this) {
+			polling = false;
+			if(running && pending == null) {
+				schedule(delay);
+			}
+		}
+	}
+
+	/** @return the millisecs until the next poll */
+	private long poll() {
+		if(recorder != null && recorder.isBacklogged()) {
+			return BACKPRESSURE_MILLIS;
+		}
+
+		List<Bundle> bundles = null;
+		try {
+			bundles = acquisitionService.getSensorData(sensorID, batchDrain);
+		}
+		catch(RemoteException rex) {
+			rex.printStackTrace();
+		}
+
+		samples.clear();
+		if(bundles != null) {
+			samples.addAll(bundles);
+		}
+		if(samples.size() > 0) {
+			for(TempSampleListener listener : listeners) {
+				listener.onSamples(sensorID, samples);
+			}
+		}
+		batchDrain.batchReceived(samples.size());
+		if(batchDrain.isDraining()) {
+			return 0;
+		}
+
+		long now = SystemClock.elapsedRealtime();
+		if(samples.size() > 0) {
+			lastDataMillis = now;
+			linkCheckMillis = LINK_CHECK_MILLIS;
+			nextLinkCheck = now + linkCheckMillis;
+		}
+		else if(now >= nextLinkCheck) {
+			checkLink();
+			nextLinkCheck = now + linkCheckMillis;
+		}
+		return pollInterval.next(samples.size() > 0, now);
+	}
+
+	private void checkLink() {
+		try {
+			if(acquisitionService.isSensorConnected(sensorID)) {
+				return;
+			}
+		}
+		catch(RemoteException rex) {
+			rex.printStackTrace();
+		}
+		Log.d(TAG, sensorID + ": no readings for " + (SystemClock.elapsedRealtime() - lastDataMillis)
+				+ " ms, link lost");
+		linkCheckMillis = Math.min(linkCheckMillis * 2, MAX_LINK_CHECK_MILLIS);
+		pollInterval.reset();
+		acquisitionService.linkLost(sensorID);
+	}
+
+	private void schedule(long delayMillis) {
+		pending = executor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+	}
+}
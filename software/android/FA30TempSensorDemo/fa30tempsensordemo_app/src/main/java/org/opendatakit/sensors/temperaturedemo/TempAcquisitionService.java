@@ -0,0 +1,804 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import android.annotation.TargetApi;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.media.MediaPlayer;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs the procedure: the sensors, their connections and pollers, the
+ * statistics and alarms, the history recorder and the last readings of each
+ * sensor. It outlives DisplayTempActivity, which binds to it and attaches
+ * while it exists, so leaving and reopening the app neither stops the
+ * sensors nor reconnects them.
+ *
+ * The sensors are reached through the attached activity, which is a
+ * BaseActivity bound to the ODK Sensors service (see SensorAccess). An
+ * activity stays attached until it is destroyed, so the procedure keeps
+ * recording while the activity is in the background. Once it is gone the
+ * pollers pause and the readings wait in the sensors service; the pollers
+ * drain them when an activity attaches again. Nothing is recorded, and no
+ * alarm can sound, while no activity is attached: recording on its own would
+ * need this service to bind the ODK Sensors service itself, which it does
+ * not. The readings, alarms and connection states the service has are handed
+ * to the activity as it attaches.
+ *
+ * During a procedure the service is started, and in the foreground while an
+ * activity is attached. While the procedure is paused the notification says
+ * so instead. A procedure that was running when the process was killed comes
+ * back paused, in a service the system restarts or the activity binds to,
+ * and resumes as an activity attaches. After the procedure the service stops
+ * once the activity unbinds.
+ *
+ * Everything but the calls from the poller and connection threads runs on
+ * the main thread.
+ */
+public class TempAcquisitionService extends Service {
+
+	private static final String TAG = "TempAcquisitionService";
+
+	//polls and connects of all sensors share this many threads
+	static final int MAX_POLL_THREADS = 4;
+
+	static final int NOTIFICATION_ID = 1;
+	static final String NOTIFICATION_TEXT = "Recording temperatures";
+	static final String NOTIFICATION_PAUSED_TEXT = "Paused, open the app to resume recording";
+	static final String NOTIFICATION_ALARM_TEXT = "Temperature alarm: ";
+
+	//preferences of a running procedure, so that it survives the process. the boot time tells
+	//whether startMillis is from this boot
+	private static final String PROCEDURE_START_MILLIS_STR = "procedureStartMillis";
+	private static final String PROCEDURE_BOOT_MILLIS_STR = "procedureBootMillis";
+	//how far the boot time computed from the wall clock may be off and still be the same boot
+	private static final long MAX_BOOT_MILLIS_DRIFT = 60 * 1000;
+
+	/** what the attached activity shows, called on the main thread */
+	interface Client {
+
+		/** @param state one of the ConnectionManager states */
+		void showConnectionState(String sensorID, int state);
+
+		/** @param alarm one of the TempStats alarms */
+		void showAlarm(String sensorID, int alarm);
+	}
+
+	final class LocalBinder extends Binder {
+		TempAcquisitionService getService() {
+			return TempAcquisitionService.this;
+		}
+	}
+
+	private final IBinder binder = new LocalBinder();
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+	// main thread only
+	private final List<String> tempSensorIDs = new ArrayList<String>();
+	private final Map<String, ConnectionManager> connectionManagers = new HashMap<String, ConnectionManager>();
+	private final Map<String, Integer> connectionStates = new HashMap<String, Integer>();
+	private final Map<String, SensorPoller> pollers = new HashMap<String, SensorPoller>();
+	private final Map<String, TempStats> tempStats = new HashMap<String, TempStats>();
+	private final Map<String, Integer> alarms = new HashMap<String, Integer>();
+	private ScheduledExecutorService executor;
+	private TempRecorder tempRecorder;
+	private MediaPlayer beepPlayer;
+	private Client client;
+	private boolean startState = false;
+	private long startMillis = -1;
+
+	// used by the poller and connection threads
+	private volatile SensorAccess sensorAccess;
+	private final ConcurrentHashMap<String, RecentReadings> recentReadings = new ConcurrentHashMap<String, RecentReadings>();
+
+	// guarded by recentReadings
+	private TempSampleListener display;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		Log.d(TAG,"onCreate");
+
+		// a bounded pool for any number of sensors: each sensor has at most one poll and one connect step queued
+		executor = Executors.newScheduledThreadPool(
+				Math.max(2, Math.min(MAX_POLL_THREADS, Runtime.getRuntime().availableProcessors())));
+
+		for(String sensorID : loadSensorIDs()) {
+			Log.d(TAG,"restored tempsensorID: " + sensorID);
+			putSensor(sensorID);
+		}
+		restoreProcedure();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return binder;
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		// a restarted service holds the paused procedure until an activity attaches
+		return startState ? START_STICKY : START_NOT_STICKY;
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.d(TAG,"onDestroy");
+		stopPollers();
+
+		for(ConnectionManager connectionManager : connectionManagers.values()) {
+			connectionManager.cancel();
+		}
+		executor.shutdownNow();
+
+		if(tempRecorder != null) {
+			// close waits for the writer to finish the queue
+			final TempRecorder recorder = tempRecorder;
+			tempRecorder = null;
+			new Thread("Temperature history close") {
+				@Override
+				public void run() {
+					recorder.close();
+				}
+			}.start();
+		}
+
+		stopBeeping();
+		if(beepPlayer != null) {
+			beepPlayer.release();
+			beepPlayer = null;
+		}
+		super.onDestroy();
+	}
+
+	/**
+	 * Makes sensorAccess the way to the sensors and shows the state of the
+	 * procedure on client and display at once, including the recent readings
+	 * of every sensor. Resumes a procedure that was paused by detach.
+	 */
+	void attach(SensorAccess sensorAccess, Client client, TempSampleListener display) {
+		Log.d(TAG,"attach");
+		this.sensorAccess = sensorAccess;
+		this.client = client;
+
+		for(String sensorID : tempSensorIDs) {
+			client.showConnectionState(sensorID, getConnectionState(sensorID));
+			int alarm = getAlarm(sensorID);
+			if(alarm != TempStats.ALARM_NONE) {
+				client.showAlarm(sensorID, alarm);
+			}
+		}
+
+		TempSamples recent = new TempSamples();
+		synchronized(recentReadings) {
+			this.display = display;
+			for(String sensorID : tempSensorIDs) {
+				RecentReadings readings = recentReadings.get(sensorID);
+				if(readings == null) {
+					continue;
+				}
+				readings.copyTo(recent);
+				if(recent.size() > 0) {
+					display.onSamples(sensorID, recent);
+				}
+			}
+		}
+
+		if(!startState) {
+			return;
+		}
+		String alarmedSensorID = getAlarmedSensorID();
+		startInForeground(alarmedSensorID == null ? NOTIFICATION_TEXT : NOTIFICATION_ALARM_TEXT + alarmedSensorID);
+		for(String sensorID : tempSensorIDs) {
+			SensorPoller poller = pollers.get(sensorID);
+			if(poller != null) {
+				poller.resume();
+			}
+			if(getConnectionState(sensorID) == ConnectionManager.IDLE) {
+				connectionManagers.get(sensorID).connect(sensorID);
+			}
+		}
+	}
+
+	/**
+	 * Pauses the procedure until the next attach; the sensors stay connected
+	 * and started. Nothing is recorded meanwhile, so the service leaves the
+	 * foreground.
+	 */
+	void detach(Client client) {
+		if(this.client != client) {
+			// another activity attached meanwhile
+			return;
+		}
+		Log.d(TAG,"detach");
+		this.client = null;
+		synchronized(recentReadings) {
+			display = null;
+		}
+		for(SensorPoller poller : pollers.values()) {
+			poller.stop();
+		}
+		// a connect needs the activity
+		for(ConnectionManager connectionManager : connectionManagers.values()) {
+			connectionManager.cancel();
+		}
+		sensorAccess = null;
+
+		if(startState) {
+			stopForeground(false);
+			updateNotification(NOTIFICATION_PAUSED_TEXT, false);
+		}
+	}
+
+	List<String> getSensorIDs() {
+		return Collections.unmodifiableList(tempSensorIDs);
+	}
+
+	boolean isStarted() {
+		return startState;
+	}
+
+	/** the SystemClock.elapsedRealtime the procedure started at, -1 before the first one */
+	long getStartMillis() {
+		return startMillis;
+	}
+
+	void addSensor(String sensorID) {
+		if(putSensor(sensorID)) {
+			saveSensorIDs();
+		}
+	}
+
+	void removeSensor(String sensorID) {
+		ConnectionManager connectionManager = connectionManagers.remove(sensorID);
+		if(connectionManager != null) {
+			connectionManager.cancel();
+		}
+		tempSensorIDs.remove(sensorID);
+		connectionStates.remove(sensorID);
+		alarms.remove(sensorID);
+		recentReadings.remove(sensorID);
+		saveSensorIDs();
+	}
+
+	/** connects sensorID unless it is connected or connecting */
+	void connect(String sensorID) {
+		ConnectionManager connectionManager = connectionManagers.get(sensorID);
+		if(connectionManager == null) {
+			return;
+		}
+		int state = getConnectionState(sensorID);
+		if(state == ConnectionManager.FAILED || state == ConnectionManager.IDLE) {
+			connectionManager.connect(sensorID);
+		}
+	}
+
+	/** stops the connects in progress, unless a procedure is waiting for them */
+	void cancelConnects() {
+		if(startState) {
+			return;
+		}
+		for(ConnectionManager connectionManager : connectionManagers.values()) {
+			if(connectionManager.getState() == ConnectionManager.CONNECTING) {
+				connectionManager.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Starts the procedure on every sensor: the ones that are connected
+	 * start at once, the others as soon as they connect.
+	 */
+	void startProcedure() {
+		if(startState) {
+			return;
+		}
+		startState = true;
+		startMillis = SystemClock.elapsedRealtime();
+		synchronized(recentReadings) {
+			for(RecentReadings readings : recentReadings.values()) {
+				readings.clear();
+			}
+		}
+
+		saveProcedure();
+		// keeps the service, and with it the procedure, alive when the activity goes
+		startService(new Intent(this, TempAcquisitionService.class));
+		startInForeground(NOTIFICATION_TEXT);
+
+		for(String sensorID : tempSensorIDs) {
+			if(isConnected(sensorID)) {
+				setConnectionState(sensorID, ConnectionManager.CONNECTED);
+				startAcquisition(sensorID);
+			}
+			else {
+				connectionManagers.get(sensorID).connect(sensorID);
+			}
+		}
+	}
+
+	void stopProcedure() {
+		stopPollers();
+		stopBeeping();
+		startState = false;
+		saveProcedure();
+
+		for(String sensorID : tempSensorIDs) {
+			setAlarm(sensorID, TempStats.ALARM_NONE);
+			SensorAccess access = sensorAccess;
+			if(access == null) {
+				continue;
+			}
+			try {
+				access.requestStop(sensorID);
+			}
+			catch(RemoteException rex) {
+				rex.printStackTrace();
+			}
+		}
+
+		stopForeground(true);
+		stopSelf();
+	}
+
+	/** silences the alarm sound until the next alarm */
+	void silenceAlarm() {
+		stopBeeping();
+	}
+
+	List<Bundle> getSensorData(String sensorID, BatchDrain batchDrain) throws RemoteException {
+		return requireAccess().getSensorData(sensorID, batchDrain);
+	}
+
+	void requestConnect(String sensorID) throws RemoteException {
+		requireAccess().requestConnect(sensorID);
+	}
+
+	boolean isSensorConnected(String sensorID) throws RemoteException {
+		return requireAccess().isSensorConnected(sensorID);
+	}
+
+	/** called by a poller thread when its sensor disconnected during a procedure */
+	void linkLost(final String sensorID) {
+		mainHandler.post(new Runnable() {
+			public void run() {
+				ConnectionManager connectionManager = connectionManagers.get(sensorID);
+				if(!startState || sensorAccess == null || connectionManager == null
+						|| connectionManager.getState() == ConnectionManager.CONNECTING) {
+					return;
+				}
+				connectionManager.connect(sensorID);
+			}
+		});
+	}
+
+	private SensorAccess requireAccess() throws RemoteException {
+		SensorAccess access = sensorAccess;
+		if(access == null) {
+			throw new RemoteException();
+		}
+		return access;
+	}
+
+	private boolean isConnected(String sensorID) {
+		try {
+			return isSensorConnected(sensorID);
+		}
+		catch(RemoteException rex) {
+			rex.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean putSensor(final String sensorID) {
+		if(tempSensorIDs.contains(sensorID)) {
+			return false;
+		}
+		tempSensorIDs.add(sensorID);
+		recentReadings.put(sensorID, new RecentReadings());
+		connectionManagers.put(sensorID, new ConnectionManager(this, executor, new ConnectionManager.Listener() {
+
+			public void onConnectionStateChanged(final int state) {
+				mainHandler.post(new Runnable() {
+					public void run() {
+						onConnectionState(sensorID, state);
+					}
+				});
+			}
+		}));
+		return true;
+	}
+
+	private SharedPreferences getPreferences() {
+		return getSharedPreferences(DisplayTempActivity.PREFERENCES_NAME, MODE_PRIVATE);
+	}
+
+	private List<String> loadSensorIDs() {
+		SharedPreferences appPreferences = getPreferences();
+		List<String> sensorIDs = new ArrayList<String>();
+		String joined = appPreferences.getString(DisplayTempActivity.TEMP_SENSOR_IDS_STR, null);
+		if(joined == null) {
+			joined = appPreferences.getString(DisplayTempActivity.TEMP_SENSOR_ID_STR, null);
+		}
+		if(joined != null) {
+			for(String sensorID : joined.split(",")) {
+				if(sensorID.length() > 0 && !sensorIDs.contains(sensorID)) {
+					sensorIDs.add(sensorID);
+				}
+			}
+		}
+		return sensorIDs;
+	}
+
+	// getStringSet needs API level 11
+	private void saveSensorIDs() {
+		StringBuilder joined = new StringBuilder();
+		for(String sensorID : tempSensorIDs) {
+			if(joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(sensorID);
+		}
+		SharedPreferences.Editor prefsEditor = getPreferences().edit();
+		prefsEditor.putString(DisplayTempActivity.TEMP_SENSOR_IDS_STR, joined.toString());
+		prefsEditor.remove(DisplayTempActivity.TEMP_SENSOR_ID_STR);
+		if(prefsEditor.commit())
+			Log.d(TAG,"saved tempSensorIDs to preferences");
+		else
+			Log.e(TAG,"preferences commit failed for tempSensorIDs");
+	}
+
+	private void saveProcedure() {
+		SharedPreferences.Editor prefsEditor = getPreferences().edit();
+		if(startState) {
+			prefsEditor.putLong(PROCEDURE_START_MILLIS_STR, startMillis);
+			prefsEditor.putLong(PROCEDURE_BOOT_MILLIS_STR, System.currentTimeMillis() - SystemClock.elapsedRealtime());
+		}
+		else {
+			prefsEditor.remove(PROCEDURE_START_MILLIS_STR);
+			prefsEditor.remove(PROCEDURE_BOOT_MILLIS_STR);
+		}
+		if(!prefsEditor.commit())
+			Log.e(TAG,"preferences commit failed for the procedure");
+	}
+
+	/**
+	 * Brings back, paused, the procedure a killed process was running. One
+	 * from before a reboot is dropped: the sensors service lost its readings.
+	 */
+	private void restoreProcedure() {
+		SharedPreferences appPreferences = getPreferences();
+		long savedStartMillis = appPreferences.getLong(PROCEDURE_START_MILLIS_STR, -1);
+		if(savedStartMillis < 0) {
+			return;
+		}
+		long bootMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+		long savedBootMillis = appPreferences.getLong(PROCEDURE_BOOT_MILLIS_STR, 0);
+		if(Math.abs(bootMillis - savedBootMillis) > MAX_BOOT_MILLIS_DRIFT
+				|| savedStartMillis > SystemClock.elapsedRealtime()) {
+			Log.d(TAG,"procedure from before a reboot dropped");
+			saveProcedure();
+			return;
+		}
+		Log.d(TAG,"procedure restored, paused");
+		startState = true;
+		startMillis = savedStartMillis;
+		startService(new Intent(this, TempAcquisitionService.class));
+		updateNotification(NOTIFICATION_PAUSED_TEXT, false);
+	}
+
+	private int getConnectionState(String sensorID) {
+		Integer state = connectionStates.get(sensorID);
+		return state == null ? ConnectionManager.IDLE : state;
+	}
+
+	private void setConnectionState(String sensorID, int state) {
+		connectionStates.put(sensorID, state);
+		if(client != null) {
+			client.showConnectionState(sensorID, state);
+		}
+	}
+
+	private void onConnectionState(String sensorID, int state) {
+		if(!connectionManagers.containsKey(sensorID)) {
+			// removed meanwhile
+			return;
+		}
+		setConnectionState(sensorID, state);
+		if(state != ConnectionManager.CONNECTED || !startState) {
+			return;
+		}
+		SensorPoller poller = pollers.get(sensorID);
+		if(poller != null) {
+			// reconnected during a procedure: the poller is still polling
+			SensorAccess access = sensorAccess;
+			if(access == null) {
+				return;
+			}
+			try {
+				access.requestStart(sensorID);
+			}
+			catch(RemoteException rex) {
+				rex.printStackTrace();
+			}
+			// a board that restarted is back at its default resolution
+			requestResolution(sensorID);
+			requestMissingReadings(sensorID);
+			poller.pollNow();
+		}
+		else {
+			startAcquisition(sensorID);
+		}
+	}
+
+	private void startAcquisition(String sensorID) {
+		SensorAccess access = sensorAccess;
+		if(access == null) {
+			return;
+		}
+		requestPackedOutput(sensorID);
+		try {
+			access.requestStart(sensorID);
+		}
+		catch(RemoteException rex) {
+			rex.printStackTrace();
+			return;
+		}
+		requestResolution(sensorID);
+
+		if(!pollers.containsKey(sensorID)) {
+			SensorPoller poller = newPoller(sensorID);
+			pollers.put(sensorID, poller);
+			poller.start();
+		}
+	}
+
+	private void stopPollers() {
+		for(SensorPoller poller : pollers.values()) {
+			poller.stop();
+		}
+		pollers.clear();
+		for(Map.Entry<String, TempStats> entry : tempStats.entrySet()) {
+			Log.i(TAG,entry.getKey() + " statistics:\n" + entry.getValue().summary());
+		}
+		tempStats.clear();
+	}
+
+	private SensorPoller newPoller(String sensorID) {
+		SharedPreferences appPreferences = getPreferences();
+		BatchDrain batchDrain = new BatchDrain(
+				appPreferences.getInt(DisplayTempActivity.LIVE_BATCH_SIZE_STR, BatchDrain.DEFAULT_LIVE_BATCH_SIZE),
+				appPreferences.getInt(DisplayTempActivity.DRAIN_BATCH_SIZE_STR, BatchDrain.DEFAULT_DRAIN_BATCH_SIZE),
+				appPreferences.getBoolean(DisplayTempActivity.DRAIN_ON_START_STR, true));
+		if(tempRecorder == null) {
+			tempRecorder = new TempRecorder(new TempHistoryStore(this));
+		}
+		TempStats stats = new TempStats(TempStats.ALL_PROBES,
+				appPreferences.getFloat(DisplayTempActivity.ALARM_LOW_TEMP_STR, DisplayTempActivity.DEFAULT_ALARM_LOW_TEMP),
+				appPreferences.getFloat(DisplayTempActivity.ALARM_HIGH_TEMP_STR, DisplayTempActivity.DEFAULT_ALARM_HIGH_TEMP),
+				appPreferences.getFloat(DisplayTempActivity.ALARM_HYSTERESIS_STR, DisplayTempActivity.DEFAULT_ALARM_HYSTERESIS),
+				appPreferences.getLong(DisplayTempActivity.ALARM_DEBOUNCE_MILLIS_STR,
+						DisplayTempActivity.DEFAULT_ALARM_DEBOUNCE_MILLIS),
+				alarmListener(sensorID));
+		tempStats.put(sensorID, stats);
+		return new SensorPoller(this, sensorID, executor, batchDrain, tempRecorder,
+				recentListener, stats, tempRecorder);
+	}
+
+	// keeps the last readings and passes them on to the display of the attached activity
+	private final TempSampleListener recentListener = new TempSampleListener() {
+
+		public void onSamples(String sensorID, TempSamples samples) {
+			synchronized(recentReadings) {
+				RecentReadings readings = recentReadings.get(sensorID);
+				if(readings != null) {
+					readings.addAll(samples);
+				}
+				if(display != null) {
+					display.onSamples(sensorID, samples);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Asks the driver for one Bundle of primitive arrays per getSensorData
+	 * call instead of one String reading per Bundle. See TempSamples.
+	 */
+	private void requestPackedOutput(String sensorID) {
+		Bundle params = new Bundle();
+		params.putBoolean(TempSamples.PARAM_ENABLED, true);
+		try {
+			requireAccess().requestConfigure(sensorID, TempSamples.SETTING_PACKED_OUTPUT, params);
+		}
+		catch(RemoteException rex) {
+			// TempSamples reads the per-reading Bundles as well
+			Log.d(TAG,"packed output not configured");
+		}
+	}
+
+	/**
+	 * Asks the driver for the readings it missed during a dropout. The board
+	 * resends the frames lost on the link; the readings of the dropout itself
+	 * exist only if its sketch samples while disconnected (see
+	 * SAMPLE_WHILE_DISCONNECTED in the sketch).
+	 */
+	private void requestMissingReadings(String sensorID) {
+		try {
+			requireAccess().requestConfigure(sensorID, TempSamples.SETTING_RESEND_MISSING, null);
+		}
+		catch(RemoteException rex) {
+			Log.d(TAG,"missing readings not requested");
+		}
+	}
+
+	/**
+	 * Sets the probe resolution from the preferences. Fewer bits make a
+	 * conversion faster, so the board can sample up to 8 times as often.
+	 */
+	private void requestResolution(String sensorID) {
+		SharedPreferences appPreferences = getPreferences();
+		if(!appPreferences.contains(DisplayTempActivity.RESOLUTION_BITS_STR)) {
+			return;
+		}
+		Bundle params = new Bundle();
+		params.putInt(TempSamples.PARAM_BITS, appPreferences.getInt(DisplayTempActivity.RESOLUTION_BITS_STR, 12));
+		params.putInt(TempSamples.PARAM_INTERVAL_MILLIS,
+				appPreferences.getInt(DisplayTempActivity.SAMPLING_INTERVAL_MILLIS_STR, 0));
+		try {
+			requireAccess().requestConfigure(sensorID, TempSamples.SETTING_RESOLUTION, params);
+		}
+		catch(RemoteException rex) {
+			Log.d(TAG,"resolution not set");
+		}
+	}
+
+	private TempAlarmListener alarmListener(final String sensorID) {
+		return new TempAlarmListener() {
+
+			public void onAlarm(final int alarm, float value, long timeNanos) {
+				Log.d(TAG,sensorID + " alarm " + alarm + " at " + value);
+				mainHandler.post(new Runnable() {
+					public void run() {
+						if(startState) {
+							setAlarm(sensorID, alarm);
+						}
+					}
+				});
+			}
+		};
+	}
+
+	private int getAlarm(String sensorID) {
+		Integer alarm = alarms.get(sensorID);
+		return alarm == null ? TempStats.ALARM_NONE : alarm;
+	}
+
+	/**
+	 * The alarm sounds while any sensor is in alarm, also while the activity
+	 * is in the background. No readings, and so no new alarms, come in while
+	 * the procedure is paused.
+	 */
+	private void setAlarm(String sensorID, int alarm) {
+		if(!connectionManagers.containsKey(sensorID) || getAlarm(sensorID) == alarm) {
+			return;
+		}
+		alarms.put(sensorID, alarm);
+		if(client != null) {
+			client.showAlarm(sensorID, alarm);
+		}
+
+		String alarmedSensorID = getAlarmedSensorID();
+		if(alarmedSensorID == null) {
+			stopBeeping();
+		}
+		else if(alarm != TempStats.ALARM_NONE) {
+			startBeeping();
+		}
+		// a late alarm from a poll that was under way as the activity went leaves the paused text
+		if(startState && client != null) {
+			updateNotification(alarmedSensorID == null ? NOTIFICATION_TEXT
+					: NOTIFICATION_ALARM_TEXT + (alarm != TempStats.ALARM_NONE ? sensorID : alarmedSensorID), true);
+		}
+	}
+
+	private String getAlarmedSensorID() {
+		for(Map.Entry<String, Integer> entry : alarms.entrySet()) {
+			if(entry.getValue() != TempStats.ALARM_NONE) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	private void startBeeping() {
+		if(beepPlayer == null) {
+			beepPlayer = MediaPlayer.create(this, R.raw.beep4);
+			if(beepPlayer == null) {
+				Log.e(TAG,"could not load the alarm sound");
+				return;
+			}
+			beepPlayer.setLooping(true);
+		}
+		if(!beepPlayer.isPlaying()) {
+			beepPlayer.start();
+		}
+	}
+
+	private void stopBeeping() {
+		if(beepPlayer != null && beepPlayer.isPlaying()) {
+			beepPlayer.pause();
+			beepPlayer.seekTo(0);
+		}
+	}
+
+	// below API level 11 the service is started but not in the foreground
+	private void startInForeground(String text) {
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		startForeground(NOTIFICATION_ID, buildNotification(text, true));
+	}
+
+	/** @param ongoing whether the service is recording, so the notification cannot be dismissed */
+	private void updateNotification(String text, boolean ongoing) {
+		if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			return;
+		}
+		NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+		notificationManager.notify(NOTIFICATION_ID, buildNotification(text, ongoing));
+	}
+
+	// only uses what the compile SDK of the shared gradle config has. an app targeting below API
+	// level 26 gets a default notification channel, so it needs none of its own
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	@SuppressWarnings("deprecation")
+	private Notification buildNotification(String text, boolean ongoing) {
+		Intent intent = new Intent(this, DisplayTempActivity.class);
+		intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+		Notification.Builder builder = new Notification.Builder(this);
+		builder.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getString(R.string.app_name))
+				.setContentText(text)
+				.setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+				.setOngoing(ongoing);
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? builder.build() : builder.getNotification();
+	}
+}
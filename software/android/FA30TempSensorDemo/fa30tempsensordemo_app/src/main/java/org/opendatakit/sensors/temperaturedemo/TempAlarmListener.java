@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+/**
+ * Receives the alarm changes of a TempStats.
+ */
+interface TempAlarmListener {
+
+	/**
+	 * Called on a poller thread when the alarm state changes, once the new
+	 * state has held for the debounce time.
+	 *
+	 * @param alarm one of TempStats.ALARM_NONE, ALARM_HIGH or ALARM_LOW
+	 * @param value the reading that confirmed the change, in degrees Celsius
+	 * @param timeNanos the time of that reading, nanos since the epoch
+	 */
+	void onAlarm(int alarm, float value, long timeNanos);
+}
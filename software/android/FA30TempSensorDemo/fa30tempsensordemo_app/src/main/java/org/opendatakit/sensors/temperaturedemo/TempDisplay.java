@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Shows the latest reading of each probe and the connection state of every
+ * sensor as a row of the list in DisplayTempActivity, and the time since the
+ * start of the procedure. A board with several probes gets a line per probe,
+ * keyed by its ROM ID, in the order the probes first reported.
+ *
+ * Poller threads only store the latest reading of each probe in the row of
+ * their sensor and mark it dirty. At most one update is pending on the main looper at a
+ * time, and updates are at least MIN_FRAME_MILLIS apart, so a backlog of
+ * readings from any number of sensors turns into a single redraw. A redraw
+ * only rebinds the dirty rows that are on screen, so its cost does not grow
+ * with the number of sensors; rows scrolled into view are bound by getView.
+ *
+ * Rows are added, removed and read on the main thread. Each row has its own
+ * char buffer for the temperatures, which its TextView keeps a reference to.
+ */
+class TempDisplay extends BaseAdapter implements TempSampleListener {
+
+	static final long MIN_FRAME_MILLIS = 100;
+
+	static final String NO_READING = "--";
+	static final String STATE_IDLE = "not connected";
+	static final String STATE_CONNECTING = "connecting...";
+	static final String STATE_CONNECTED = "connected";
+	static final String STATE_FAILED = "connection failed, tap to retry";
+	static final String ALARM_HIGH = "HIGH";
+	static final String ALARM_LOW = "LOW";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// the longest line: a newline, a probe ID, ": " and a temperature
+	private static final int LINE_CHARS = 40;
+
+	private static final class Row {
+		final String sensorID;
+
+		// latest reading of each probe, written by a poller thread and read by
+		// the main thread. guarded by the row
+		final long[] probeIds = new long[TempStats.MAX_PROBES];
+		final float[] latestTemps = new float[TempStats.MAX_PROBES];
+		int probeCount;
+		int lastProbe;
+
+		volatile boolean dirty = true;
+
+		// main thread only
+		char[] text = new char[LINE_CHARS];
+		int state = ConnectionManager.IDLE;
+		int alarm = TempStats.ALARM_NONE;
+		String status;
+
+		Row(String sensorID) {
+			this.sensorID = sensorID;
+			updateStatus();
+		}
+
+		void updateStatus() {
+			String stateText;
+			switch(state) {
+			case ConnectionManager.CONNECTING:
+				stateText = STATE_CONNECTING;
+				break;
+			case ConnectionManager.CONNECTED:
+				stateText = STATE_CONNECTED;
+				break;
+			case ConnectionManager.FAILED:
+				stateText = STATE_FAILED;
+				break;
+			default:
+				stateText = STATE_IDLE;
+			}
+			if(alarm == TempStats.ALARM_HIGH) {
+				stateText = ALARM_HIGH + ", " + stateText;
+			}
+			else if(alarm == TempStats.ALARM_LOW) {
+				stateText = ALARM_LOW + ", " + stateText;
+			}
+			status = sensorID + ": " + stateText;
+		}
+
+		// boards send their probes in turn, so a scan from the last one is cheap
+		void setLatest(long probeId, float temp) {
+			for(int n = 0; n < probeCount; n++) {
+				int index = (lastProbe + n) % probeCount;
+				if(probeIds[index] == probeId) {
+					lastProbe = index;
+					latestTemps[index] = temp;
+					return;
+				}
+			}
+			if(probeCount == TempStats.MAX_PROBES) {
+				return;
+			}
+			lastProbe = probeCount;
+			probeIds[probeCount] = probeId;
+			latestTemps[probeCount++] = temp;
+		}
+	}
+
+	private final DisplayTempActivity displayTempActivity;
+	private final ListView listView;
+	private final LayoutInflater inflater;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final AtomicBoolean updatePending = new AtomicBoolean(false);
+
+	private final List<Row> rows = new ArrayList<Row>();
+	// looked up by poller threads
+	private final ConcurrentHashMap<String, Row> rowsByID = new ConcurrentHashMap<String, Row>();
+
+	// main thread only
+	private long startTime = -1;
+	private long lastUpdateMillis = 0;
+	private long shownSecs = -1;
+	private final char[] elapsedText = new char[16];
+
+	TempDisplay(DisplayTempActivity displayTempActivity, ListView listView) {
+		this.displayTempActivity = displayTempActivity;
+		this.listView = listView;
+		this.inflater = LayoutInflater.from(displayTempActivity);
+		listView.setAdapter(this);
+	}
+
+	void addSensor(String sensorID) {
+		if(rowsByID.containsKey(sensorID)) {
+			return;
+		}
+		Row row = new Row(sensorID);
+		rows.add(row);
+		rowsByID.put(sensorID, row);
+		notifyDataSetChanged();
+	}
+
+	void removeSensor(String sensorID) {
+		Row row = rowsByID.remove(sensorID);
+		if(row != null) {
+			rows.remove(row);
+			notifyDataSetChanged();
+		}
+	}
+
+	String getSensorID(int position) {
+		return rows.get(position).sensorID;
+	}
+
+	/**
+	 * Starts the time elapsed and forgets the readings of the last procedure.
+	 *
+	 * @param startTime the SystemClock.elapsedRealtime the procedure started at
+	 */
+	void startProcedure(long startTime) {
+		this.startTime = startTime;
+		shownSecs = -1;
+		for(Row row : rows) {
+			synchronized(row) {
+				row.probeCount = 0;
+				row.lastProbe = 0;
+			}
+		}
+		notifyDataSetChanged();
+	}
+
+	/** @param state one of the ConnectionManager states */
+	void setState(String sensorID, int state) {
+		Row row = rowsByID.get(sensorID);
+		if(row != null && row.state != state) {
+			row.state = state;
+			row.updateStatus();
+			markDirty(row);
+		}
+	}
+
+	/** @param alarm one of the TempStats alarms */
+	void setAlarm(String sensorID, int alarm) {
+		Row row = rowsByID.get(sensorID);
+		if(row != null && row.alarm != alarm) {
+			row.alarm = alarm;
+			row.updateStatus();
+			markDirty(row);
+		}
+	}
+
+	public void onSamples(String sensorID, TempSamples samples) {
+		Row row = rowsByID.get(sensorID);
+		if(row == null) {
+			return;
+		}
+		synchronized(row) {
+			for(int i = 0; i < samples.size(); i++) {
+				row.setLatest(samples.getProbeId(i), samples.getValue(i));
+			}
+		}
+		markDirty(row);
+	}
+
+	private void markDirty(Row row) {
+		row.dirty = true;
+		if(updatePending.compareAndSet(false, true)) {
+			mainHandler.post(scheduleUpdate);
+		}
+	}
+
+	// runs on the main thread, so lastUpdateMillis needs no synchronization
+	private final Runnable scheduleUpdate = new Runnable() {
+		public void run() {
+			long next = Math.max(SystemClock.uptimeMillis(), lastUpdateMillis + MIN_FRAME_MILLIS);
+			mainHandler.postAtTime(update, next);
+		}
+	};
+
+	private final Runnable update = new Runnable() {
+		public void run() {
+			// rows marked after this point post the next update
+			updatePending.set(false);
+			lastUpdateMillis = SystemClock.uptimeMillis();
+
+			int first = listView.getFirstVisiblePosition();
+			for(int i = 0; i < listView.getChildCount(); i++) {
+				int position = first + i;
+				if(position >= rows.size()) {
+					break;
+				}
+				Row row = rows.get(position);
+				if(row.dirty) {
+					bind(row, listView.getChildAt(i));
+				}
+			}
+
+			if(startTime >= 0) {
+				long totalSecsElapsed = (SystemClock.elapsedRealtime() - startTime) / 1000;
+				if(totalSecsElapsed != shownSecs) {
+					shownSecs = totalSecsElapsed;
+					int len = formatElapsed(totalSecsElapsed, elapsedText);
+					displayTempActivity.timeElapsedField.setText(elapsedText, 0, len);
+				}
+			}
+		}
+	};
+
+	public int getCount() {
+		return rows.size();
+	}
+
+	public Object getItem(int position) {
+		return rows.get(position).sensorID;
+	}
+
+	public long getItemId(int position) {
+		return position;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View view = convertView;
+		if(view == null) {
+			view = inflater.inflate(android.R.layout.simple_list_item_2, parent, false);
+		}
+		bind(rows.get(position), view);
+		return view;
+	}
+
+	private static void bind(Row row, View view) {
+		row.dirty = false;
+		TextView tempView = (TextView) view.findViewById(android.R.id.text1);
+		int len = 0;
+		synchronized(row) {
+			if(row.text.length < row.probeCount * LINE_CHARS) {
+				row.text = new char[TempStats.MAX_PROBES * LINE_CHARS];
+			}
+			for(int i = 0; i < row.probeCount; i++) {
+				if(i > 0) {
+					row.text[len++] = '\n';
+				}
+				// boards with a single probe do not name it
+				if(row.probeIds[i] != TempSamples.NO_PROBE_ID) {
+					len = formatProbeId(row.probeIds[i], row.text, len);
+					row.text[len++] = ':';
+					row.text[len++] = ' ';
+				}
+				// two decimals, truncated like the readings used to be
+				len = formatTemp((int) (row.latestTemps[i] * 100), row.text, len);
+			}
+		}
+		if(len > 0) {
+			tempView.setText(row.text, 0, len);
+		}
+		else {
+			tempView.setText(NO_READING);
+		}
+		((TextView) view.findViewById(android.R.id.text2)).setText(row.status);
+	}
+
+	/**
+	 * Writes the temperature as String.valueOf prints the truncated float,
+	 * e.g. 21.06 for 2106 and -0.5 for -50, followed by the degree sign and
+	 * " C".
+	 *
+	 * @return the position after the chars written
+	 */
+	static int formatTemp(int hundredths, char[] dst, int pos) {
+		if (hundredths < 0) {
+			dst[pos++] = '-';
+			hundredths = -hundredths;
+		}
+		pos = formatInt(hundredths / 100, dst, pos);
+		dst[pos++] = '.';
+		int fraction = hundredths % 100;
+		dst[pos++] = (char) ('0' + fraction / 10);
+		if (fraction % 10 != 0) {
+			dst[pos++] = (char) ('0' + fraction % 10);
+		}
+		dst[pos++] = DisplayTempActivity.DEGREE_SYMBOL;
+		dst[pos++] = ' ';
+		dst[pos++] = 'C';
+		return pos;
+	}
+
+	/** writes the ROM ID as 16 hex digits in bus order, family code first, as the driver names it */
+	static int formatProbeId(long probeId, char[] dst, int pos) {
+		for(int i = 0; i < 8; i++) {
+			int b = (int) (probeId >>> (8 * i)) & 0xff;
+			dst[pos++] = HEX_DIGITS[b >>> 4];
+			dst[pos++] = HEX_DIGITS[b & 0xf];
+		}
+		return pos;
+	}
+
+	/** writes mm:ss, or more digits for the minutes after 99 */
+	static int formatElapsed(long totalSecs, char[] dst) {
+		long mins = totalSecs / 60;
+		int secs = (int) (totalSecs % 60);
+		int pos = 0;
+		if (mins < 10) {
+			dst[pos++] = '0';
+		}
+		pos = formatInt((int) Math.min(mins, Integer.MAX_VALUE), dst, pos);
+		dst[pos++] = ':';
+		dst[pos++] = (char) ('0' + secs / 10);
+		dst[pos++] = (char) ('0' + secs % 10);
+		return pos;
+	}
+
+	private static int formatInt(int value, char[] dst, int pos) {
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10) {
+			digits++;
+		}
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			dst[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return pos + digits;
+	}
+}
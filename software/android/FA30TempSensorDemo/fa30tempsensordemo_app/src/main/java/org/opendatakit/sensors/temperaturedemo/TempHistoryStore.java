@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Temperature history on the phone: every reading, plus min / max / mean
+ * rollups per minute and per hour for each probe, so a chart of a multi-day
+ * log only reads a few hundred rollup rows. A probe is named by the sensor
+ * ID of its board and its ROM ID, since boards with a single probe all
+ * report NO_PROBE_ID.
+ *
+ * Readings are only ever appended, one transaction per append call, and the
+ * rollups of the touched buckets are updated in the same transaction.
+ * append is meant to be called by a single writer thread (see TempRecorder);
+ * the queries can run on any thread.
+ */
+class TempHistoryStore extends SQLiteOpenHelper {
+
+	private static final String DATABASE_NAME = "temperature_history.db";
+	private static final int DATABASE_VERSION = 2;
+
+	static final long MINUTE_MILLIS = 60 * 1000;
+	static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+
+	private static final String TABLE_SAMPLES = "samples";
+	private static final String TABLE_MINUTES = "rollup_minute";
+	private static final String TABLE_HOURS = "rollup_hour";
+
+	// open (probe, bucket) rollups of the append in progress
+	private static final int MAX_OPEN_BUCKETS = 16;
+
+	/** rollup rows as parallel arrays, bucket i starts at getBucketStart(i) */
+	static final class Rollups {
+		private long[] bucketStart = new long[0];
+		private int[] count = new int[0];
+		private float[] min = new float[0];
+		private float[] max = new float[0];
+		private float[] mean = new float[0];
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		long getBucketStart(int index) {
+			return bucketStart[index];
+		}
+
+		int getCount(int index) {
+			return count[index];
+		}
+
+		float getMin(int index) {
+			return min[index];
+		}
+
+		float getMax(int index) {
+			return max[index];
+		}
+
+		float getMean(int index) {
+			return mean[index];
+		}
+
+		private void reset(int capacity) {
+			if(bucketStart.length < capacity) {
+				bucketStart = new long[capacity];
+				count = new int[capacity];
+				min = new float[capacity];
+				max = new float[capacity];
+				mean = new float[capacity];
+			}
+			size = 0;
+		}
+	}
+
+	// writer thread only
+	private SQLiteStatement insertSample;
+	private RollupBuffer minutes;
+	private RollupBuffer hours;
+
+	TempHistoryStore(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_SAMPLES + " (time INTEGER NOT NULL, sensor_id TEXT NOT NULL, "
+				+ "probe_id INTEGER NOT NULL, value REAL NOT NULL)");
+		db.execSQL("CREATE INDEX " + TABLE_SAMPLES + "_time ON " + TABLE_SAMPLES + " (time)");
+		createRollupTable(db, TABLE_MINUTES);
+		createRollupTable(db, TABLE_HOURS);
+	}
+
+	private static void createRollupTable(SQLiteDatabase db, String table) {
+		db.execSQL("CREATE TABLE " + table + " (sensor_id TEXT NOT NULL, probe_id INTEGER NOT NULL, "
+				+ "bucket INTEGER NOT NULL, count INTEGER NOT NULL, min REAL NOT NULL, max REAL NOT NULL, "
+				+ "sum REAL NOT NULL, PRIMARY KEY (sensor_id, probe_id, bucket))");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SAMPLES);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_MINUTES);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_HOURS);
+		onCreate(db);
+	}
+
+	/**
+	 * Appends count readings and updates their rollups in one transaction.
+	 * Writer thread only.
+	 */
+	void append(String[] sensorIDs, float[] values, long[] timeMillis, long[] probeIds, int count) {
+		SQLiteDatabase db = getWritableDatabase();
+		if(insertSample == null) {
+			insertSample = db.compileStatement("INSERT INTO " + TABLE_SAMPLES
+					+ " (time, sensor_id, probe_id, value) VALUES (?, ?, ?, ?)");
+			minutes = new RollupBuffer(db, TABLE_MINUTES, MINUTE_MILLIS);
+			hours = new RollupBuffer(db, TABLE_HOURS, HOUR_MILLIS);
+		}
+
+		db.beginTransaction();
+		try {
+			for(int i = 0; i < count; i++) {
+				insertSample.bindLong(1, timeMillis[i]);
+				insertSample.bindString(2, sensorIDs[i]);
+				insertSample.bindLong(3, probeIds[i]);
+				insertSample.bindDouble(4, values[i]);
+				insertSample.executeInsert();
+				minutes.add(sensorIDs[i], probeIds[i], timeMillis[i], values[i]);
+				hours.add(sensorIDs[i], probeIds[i], timeMillis[i], values[i]);
+			}
+			minutes.flush();
+			hours.flush();
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		// compiled against the connection being closed
+		insertSample = null;
+		minutes = null;
+		hours = null;
+		super.close();
+	}
+
+	/**
+	 * Reads the rollups of probeId of sensorID between fromMillis (inclusive) and
+	 * toMillis (exclusive), per minute if that gives at most maxPoints buckets,
+	 * otherwise per hour.
+	 */
+	void queryRollups(String sensorID, long probeId, long fromMillis, long toMillis, int maxPoints, Rollups out) {
+		boolean perMinute = (toMillis - fromMillis) / MINUTE_MILLIS <= maxPoints;
+		String table = perMinute ? TABLE_MINUTES : TABLE_HOURS;
+		long bucketMillis = perMinute ? MINUTE_MILLIS : HOUR_MILLIS;
+
+		Cursor cursor = getReadableDatabase().rawQuery("SELECT bucket, count, min, max, sum FROM " + table
+				+ " WHERE sensor_id = ? AND probe_id = ? AND bucket >= ? AND bucket < ? ORDER BY bucket",
+				new String[] { sensorID, Long.toString(probeId), Long.toString(bucketStart(fromMillis, bucketMillis)),
+						Long.toString(toMillis) });
+		try {
+			out.reset(cursor.getCount());
+			while(cursor.moveToNext()) {
+				int i = out.size++;
+				out.bucketStart[i] = cursor.getLong(0);
+				out.count[i] = cursor.getInt(1);
+				out.min[i] = cursor.getFloat(2);
+				out.max[i] = cursor.getFloat(3);
+				out.mean[i] = (float) (cursor.getDouble(4) / out.count[i]);
+			}
+		}
+		finally {
+			cursor.close();
+		}
+	}
+
+	static long bucketStart(long timeMillis, long bucketMillis) {
+		long offset = timeMillis % bucketMillis;
+		return timeMillis - (offset < 0 ? offset + bucketMillis : offset);
+	}
+
+	/**
+	 * Accumulates the readings of one append per (sensor, probe, bucket) and writes
+	 * each touched bucket once. Readings of several probes arrive interleaved,
+	 * so a few buckets are kept open at a time.
+	 */
+	private static final class RollupBuffer {
+		private final long bucketMillis;
+		private final SQLiteStatement insert;
+		private final SQLiteStatement update;
+
+		private final String[] sensorIDs = new String[MAX_OPEN_BUCKETS];
+		private final long[] probeIds = new long[MAX_OPEN_BUCKETS];
+		private final long[] buckets = new long[MAX_OPEN_BUCKETS];
+		private final int[] counts = new int[MAX_OPEN_BUCKETS];
+		private final double[] mins = new double[MAX_OPEN_BUCKETS];
+		private final double[] maxs = new double[MAX_OPEN_BUCKETS];
+		private final double[] sums = new double[MAX_OPEN_BUCKETS];
+		private int open;
+
+		RollupBuffer(SQLiteDatabase db, String table, long bucketMillis) {
+			this.bucketMillis = bucketMillis;
+			// no upsert in older SQLite: create the row if needed, then merge into it
+			insert = db.compileStatement("INSERT OR IGNORE INTO " + table
+					+ " (sensor_id, probe_id, bucket, count, min, max, sum) VALUES (?, ?, ?, 0, ?, ?, 0)");
+			update = db.compileStatement("UPDATE " + table
+					+ " SET count = count + ?, min = MIN(min, ?), max = MAX(max, ?), sum = sum + ?"
+					+ " WHERE sensor_id = ? AND probe_id = ? AND bucket = ?");
+		}
+
+		void add(String sensorID, long probeId, long timeMillis, float value) {
+			long bucket = bucketStart(timeMillis, bucketMillis);
+			int i = 0;
+			while(i < open && (buckets[i] != bucket || probeIds[i] != probeId || !sensorIDs[i].equals(sensorID))) {
+				i++;
+			}
+			if(i == open) {
+				if(open == MAX_OPEN_BUCKETS) {
+					flush();
+					i = 0;
+				}
+				sensorIDs[i] = sensorID;
+				probeIds[i] = probeId;
+				buckets[i] = bucket;
+				counts[i] = 0;
+				mins[i] = value;
+				maxs[i] = value;
+				sums[i] = 0;
+				open = i + 1;
+			}
+			counts[i]++;
+			mins[i] = Math.min(mins[i], value);
+			maxs[i] = Math.max(maxs[i], value);
+			sums[i] += value;
+		}
+
+		void flush() {
+			for(int i = 0; i < open; i++) {
+				insert.bindString(1, sensorIDs[i]);
+				insert.bindLong(2, probeIds[i]);
+				insert.bindLong(3, buckets[i]);
+				insert.bindDouble(4, mins[i]);
+				insert.bindDouble(5, maxs[i]);
+				insert.execute();
+
+				update.bindLong(1, counts[i]);
+				update.bindDouble(2, mins[i]);
+				update.bindDouble(3, maxs[i]);
+				update.bindDouble(4, sums[i]);
+				update.bindString(5, sensorIDs[i]);
+				update.bindLong(6, probeIds[i]);
+				update.bindLong(7, buckets[i]);
+				update.execute();
+			}
+			open = 0;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.SQLException;
+import android.util.Log;
+
+/**
+ * Records every reading in a TempHistoryStore without making the worker
+ * thread wait for the database.
+ *
+ * onSamples copies each poll's readings into a chunk and queues it in a
+ * bounded queue; chunks are dropped (and counted) when it is full. A writer
+ * thread takes whatever has been queued and appends it in one transaction,
+ * so a drained backlog costs one commit rather than one per poll. Pollers
+ * hold off while isBacklogged, so chunks are only dropped when the database
+ * stops keeping up for good.
+ */
+class TempRecorder implements TempSampleListener {
+
+	private static final String TAG = "TempRecorder";
+
+	static final int DEFAULT_QUEUE_SIZE = 256;
+
+	private static final long CLOSE_TIMEOUT_MILLIS = 2000;
+	private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+	private static final class Chunk {
+		final String sensorID;
+		final float[] values;
+		final long[] timeMillis;
+		final long[] probeIds;
+
+		Chunk(String sensorID, int size) {
+			this.sensorID = sensorID;
+			values = new float[size];
+			timeMillis = new long[size];
+			probeIds = new long[size];
+		}
+	}
+
+	// queued to stop the writer
+	private static final Chunk END = new Chunk(null, 0);
+
+	private final TempHistoryStore store;
+	private final BlockingQueue<Chunk> queue;
+	private final int backlogThreshold;
+	private final Thread writer;
+
+	private volatile boolean closed = false;
+	// pollers of several sensors count concurrently
+	private final AtomicLong dropped = new AtomicLong();
+
+	// writer thread only
+	private String[] sensorIDs = new String[256];
+	private float[] values = new float[256];
+	private long[] timeMillis = new long[256];
+	private long[] probeIds = new long[256];
+
+	TempRecorder(TempHistoryStore store) {
+		this(store, DEFAULT_QUEUE_SIZE);
+	}
+
+	TempRecorder(TempHistoryStore store, int queueSize) {
+		this.store = store;
+		this.queue = new ArrayBlockingQueue<Chunk>(queueSize);
+		this.backlogThreshold = queueSize / 2;
+		this.writer = new Thread("Temperature history") {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public void onSamples(String sensorID, TempSamples samples) {
+		int count = samples.size();
+		Chunk chunk = new Chunk(sensorID, count);
+		for(int i = 0; i < count; i++) {
+			chunk.values[i] = samples.getValue(i);
+			chunk.timeMillis[i] = samples.getTimeNanos(i) / NANOS_PER_MILLI;
+			chunk.probeIds[i] = samples.getProbeId(i);
+		}
+		if(closed || !queue.offer(chunk)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/** whether half the queue is taken, i.e. the writer is falling behind */
+	boolean isBacklogged() {
+		return queue.size() >= backlogThreshold;
+	}
+
+	/** number of polls whose readings were not recorded */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops the writer once everything queued so far is written, waiting for
+	 * it at most CLOSE_TIMEOUT_MILLIS.
+	 */
+	void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(END);
+			writer.join(CLOSE_TIMEOUT_MILLIS);
+		}
+		catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		List<Chunk> batch = new ArrayList<Chunk>();
+		try {
+			boolean done = false;
+			while(!done) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				int count = 0;
+				for(int i = 0; i < batch.size(); i++) {
+					Chunk chunk = batch.get(i);
+					if(chunk == END) {
+						done = true;
+						break;
+					}
+					count = append(chunk, count);
+				}
+				batch.clear();
+				if(count > 0) {
+					store.append(sensorIDs, values, timeMillis, probeIds, count);
+				}
+			}
+		}
+		catch(InterruptedException iex) {
+			Log.d(TAG,"writer interrupted");
+		}
+		catch(SQLException sqle) {
+			Log.e(TAG,"recording stopped: " + sqle.getMessage());
+			closed = true;
+			queue.clear();
+		}
+		finally {
+			store.close();
+		}
+	}
+
+	private int append(Chunk chunk, int count) {
+		int length = chunk.values.length;
+		if(count + length > values.length) {
+			int newCapacity = Math.max(count + length, values.length * 2);
+			String[] newSensors = new String[newCapacity];
+			System.arraycopy(sensorIDs, 0, newSensors, 0, count);
+			sensorIDs = newSensors;
+			float[] newValues = new float[newCapacity];
+			System.arraycopy(values, 0, newValues, 0, count);
+			values = newValues;
+			long[] newTimes = new long[newCapacity];
+			System.arraycopy(timeMillis, 0, newTimes, 0, count);
+			timeMillis = newTimes;
+			long[] newProbes = new long[newCapacity];
+			System.arraycopy(probeIds, 0, newProbes, 0, count);
+			probeIds = newProbes;
+		}
+		for(int i = count; i < count + length; i++) {
+			sensorIDs[i] = chunk.sensorID;
+		}
+		System.arraycopy(chunk.values, 0, values, count, length);
+		System.arraycopy(chunk.timeMillis, 0, timeMillis, count, length);
+		System.arraycopy(chunk.probeIds, 0, probeIds, count, length);
+		return count + length;
+	}
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+/**
+ * Receives readings as soon as a SensorPoller gets them from the sensors
+ * service.
+ */
+interface TempSampleListener {
+
+	/**
+	 * Called on a poller thread for every poll that returned readings. Polls
+	 * of different sensors can call it at the same time. samples is reused
+	 * for the next poll, so anything kept must be copied before returning.
+	 */
+	void onSamples(String sensorID, TempSamples samples);
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Temperature readings from the FoneAstra driver as primitive arrays: the
+ * value in degrees Celsius, the time of the reading in nanoseconds since the
+ * epoch and the ROM ID of the probe, or NO_PROBE_ID for boards that do not
+ * name it (see the driver's SampleBatch for the encoding).
+ *
+ * The driver sends one Bundle of arrays per getSensorData call once packed
+ * output is configured (SETTING_PACKED_OUTPUT), which is copied as is. Drivers
+ * without packed output send one Bundle per reading with the value and
+ * timestamp as Strings; those are still parsed here.
+ *
+ * Not thread safe. Meant to be reused by the thread that polls the driver.
+ */
+final class TempSamples {
+
+	private static final String TAG = "TempSamples";
+
+	// driver settings and keys of the packed output, see the driver's SampleBatch
+	static final String SETTING_PACKED_OUTPUT = "packed_output";
+	static final String PARAM_ENABLED = "enabled";
+	static final String SETTING_RESEND_MISSING = "resend_missing";
+	static final String SETTING_RESOLUTION = "resolution";
+	static final String PARAM_BITS = "bits";
+	static final String PARAM_INTERVAL_MILLIS = "interval_millis";
+	static final String KEY_VALUES = "sample_values";
+	static final String KEY_TIMESTAMPS = "sample_timestamps";
+	static final String KEY_PROBE_IDS = "sample_probe_ids";
+
+	static final long NO_PROBE_ID = 0;
+
+	// per-reading Bundles
+	private static final String KEY_TIMESTAMP = "timestamp";
+	private static final String KEY_PROBE_ID = "probe_id";
+	private static final String TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+	private static final int TIMESTAMP_LENGTH = 23; // without the nanosecond extension
+
+	private static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+	private float[] values = new float[16];
+	private long[] timeNanos = new long[16];
+	private long[] probeIds = new long[16];
+	private int size;
+
+	private SimpleDateFormat timestampFormat;
+
+	void clear() {
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	float getValue(int index) {
+		return values[index];
+	}
+
+	long getTimeNanos(int index) {
+		return timeNanos[index];
+	}
+
+	long getProbeId(int index) {
+		return probeIds[index];
+	}
+
+	void add(float value, long time, long probeId) {
+		ensureCapacity(size + 1);
+		values[size] = value;
+		timeNanos[size] = time;
+		probeIds[size] = probeId;
+		++size;
+	}
+
+	/** appends the readings in bundles, in order */
+	void addAll(List<Bundle> bundles) {
+		for(Bundle bundle : bundles) {
+			float[] packedValues = bundle.getFloatArray(KEY_VALUES);
+			if(packedValues != null) {
+				long[] packedTimes = bundle.getLongArray(KEY_TIMESTAMPS);
+				long[] packedProbes = bundle.getLongArray(KEY_PROBE_IDS);
+				int count = packedValues.length;
+				ensureCapacity(size + count);
+				System.arraycopy(packedValues, 0, values, size, count);
+				System.arraycopy(packedTimes, 0, timeNanos, size, count);
+				if(packedProbes != null) {
+					System.arraycopy(packedProbes, 0, probeIds, size, count);
+				}
+				else {
+					for(int i = size; i < size + count; i++) {
+						probeIds[i] = NO_PROBE_ID;
+					}
+				}
+				size += count;
+			}
+			else {
+				String reading = bundle.getString(DataSeries.SAMPLE);
+				if(reading == null) {
+					continue;
+				}
+				ensureCapacity(size + 1);
+				values[size] = Float.parseFloat(reading);
+				timeNanos[size] = parseTimestamp(bundle.getString(KEY_TIMESTAMP));
+				probeIds[size] = parseProbeId(bundle.getString(KEY_PROBE_ID));
+				++size;
+			}
+		}
+	}
+
+	private long parseTimestamp(String timestamp) {
+		if(timestamp == null || timestamp.length() < TIMESTAMP_LENGTH) {
+			return System.currentTimeMillis() * NANOS_PER_MILLI;
+		}
+		if(timestampFormat == null) {
+			timestampFormat = new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.US);
+			timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		}
+		try {
+			return timestampFormat.parse(timestamp.substring(0, TIMESTAMP_LENGTH)).getTime() * NANOS_PER_MILLI;
+		}
+		catch(ParseException pe) {
+			Log.d(TAG,"bad timestamp: " + timestamp);
+			return System.currentTimeMillis() * NANOS_PER_MILLI;
+		}
+	}
+
+	// 16 hex digits in bus order, family code first
+	private static long parseProbeId(String probeId) {
+		if(probeId == null || probeId.length() != 16) {
+			return NO_PROBE_ID;
+		}
+		long id = 0;
+		try {
+			for(int i = 0; i < 8; i++) {
+				id |= (long) Integer.parseInt(probeId.substring(2 * i, 2 * i + 2), 16) << (8 * i);
+			}
+		}
+		catch(NumberFormatException nfe) {
+			Log.d(TAG,"bad probe id: " + probeId);
+			return NO_PROBE_ID;
+		}
+		return id;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity <= values.length) {
+			return;
+		}
+		int newCapacity = Math.max(capacity, values.length * 2);
+		float[] newValues = new float[newCapacity];
+		System.arraycopy(values, 0, newValues, 0, size);
+		values = newValues;
+		long[] newTimes = new long[newCapacity];
+		System.arraycopy(timeNanos, 0, newTimes, 0, size);
+		timeNanos = newTimes;
+		long[] newProbes = new long[newCapacity];
+		System.arraycopy(probeIds, 0, newProbes, 0, size);
+		probeIds = newProbes;
+	}
+}
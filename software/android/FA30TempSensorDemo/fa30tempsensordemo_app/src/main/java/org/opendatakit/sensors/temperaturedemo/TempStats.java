@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.temperaturedemo;
+
+/**
+ * Running statistics of the readings of each probe of one sensor, updated
+ * in constant time and without allocation per reading: min, max, mean and
+ * variance, the time spent above highLimit and below lowLimit, and the rate
+ * of change. They are logged by summary when the procedure stops.
+ *
+ * Each probe has its own debounced alarm: it is raised once the probe's
+ * readings have stayed above highLimit (or below lowLimit) for
+ * debounceMillis, and cleared once they have stayed at least hysteresis
+ * inside the limits for as long. Readings between a limit and the
+ * hysteresis band keep the current state. The alarm of the sensor is
+ * ALARM_HIGH while any probe is high, else ALARM_LOW while any probe is
+ * low; its changes go to the TempAlarmListener.
+ *
+ * Time above / below a limit is the time from a reading outside the limit
+ * to the next reading of the same probe. The rate of change is smoothed
+ * over about RATE_TIME_CONSTANT_MILLIS. Readings that are not newer than
+ * the previous one of their probe only count towards min / max / mean.
+ * Probes after the first MAX_PROBES are not tracked.
+ *
+ * A TempStats only goes to the poller of its own sensor, so the sensor of
+ * the readings is not checked. onSamples runs on a poller thread, summary
+ * can be called from any thread.
+ */
+class TempStats implements TempSampleListener {
+
+	static final int ALARM_NONE = 0;
+	static final int ALARM_HIGH = 1;
+	static final int ALARM_LOW = 2;
+
+	/** track every probe of the sensor */
+	static final long ALL_PROBES = -1;
+
+	static final int MAX_PROBES = 32;
+
+	static final long RATE_TIME_CONSTANT_MILLIS = 60 * 1000;
+
+	private static final long NANOS_PER_MILLI = 1000L * 1000L;
+	private static final double NANOS_PER_MINUTE = 60.0 * 1000 * NANOS_PER_MILLI;
+
+	private final float highLimit;
+	private final float lowLimit;
+	private final float hysteresis;
+	private final long debounceNanos;
+	private final TempAlarmListener alarmListener;
+	private final long probeFilter;
+
+	// guarded by this
+	private final ProbeStats[] probes = new ProbeStats[MAX_PROBES];
+	private int probeCount;
+	private int lastProbe;
+	private int alarm = ALARM_NONE;
+
+	private final class ProbeStats {
+		final long probeId;
+
+		long count;
+		float min;
+		float max;
+		double mean;
+		double m2; // sum of squared deviations from the mean
+		long aboveNanos;
+		long belowNanos;
+		double ratePerMinute;
+		int alarm = ALARM_NONE;
+
+		float lastValue;
+		long lastTimeNanos;
+		int pendingAlarm = ALARM_NONE;
+		long pendingSinceNanos;
+
+		ProbeStats(long probeId) {
+			this.probeId = probeId;
+		}
+
+		/** @return whether the alarm of the probe changed */
+		boolean add(float value, long timeNanos) {
+			if(count == 0) {
+				min = value;
+				max = value;
+			}
+			else {
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+			++count;
+			// Welford's update, stable for long runs of similar values
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+
+			if(count > 1) {
+				long elapsed = timeNanos - lastTimeNanos;
+				if(elapsed <= 0) {
+					return false;
+				}
+				if(lastValue > highLimit) {
+					aboveNanos += elapsed;
+				}
+				else if(lastValue < lowLimit) {
+					belowNanos += elapsed;
+				}
+				double rate = (value - lastValue) * NANOS_PER_MINUTE / elapsed;
+				double weight = (double) elapsed / (elapsed + RATE_TIME_CONSTANT_MILLIS * NANOS_PER_MILLI);
+				ratePerMinute += weight * (rate - ratePerMinute);
+			}
+			lastValue = value;
+			lastTimeNanos = timeNanos;
+
+			return updateAlarm(value, timeNanos);
+		}
+
+		private boolean updateAlarm(float value, long timeNanos) {
+			int state;
+			if(value > highLimit) {
+				state = ALARM_HIGH;
+			}
+			else if(value < lowLimit) {
+				state = ALARM_LOW;
+			}
+			else if(value <= highLimit - hysteresis && value >= lowLimit + hysteresis) {
+				state = ALARM_NONE;
+			}
+			else {
+				state = alarm;
+			}
+
+			if(state == alarm) {
+				pendingAlarm = alarm;
+				return false;
+			}
+			if(state != pendingAlarm) {
+				pendingAlarm = state;
+				pendingSinceNanos = timeNanos;
+			}
+			if(timeNanos - pendingSinceNanos >= debounceNanos) {
+				alarm = state;
+				return true;
+			}
+			return false;
+		}
+
+		void appendTo(StringBuilder sb) {
+			sb.append("probe ").append(Long.toHexString(probeId)).append(": ").append(count).append(" readings");
+			if(count == 0) {
+				return;
+			}
+			double variance = count > 1 ? m2 / (count - 1) : 0;
+			sb.append(", min ").append(min).append(", max ").append(max)
+					.append(", mean ").append((float) mean).append(", sd ").append((float) Math.sqrt(variance))
+					.append(", ").append(aboveNanos / NANOS_PER_MILLI / 1000).append(" s above")
+					.append(", ").append(belowNanos / NANOS_PER_MILLI / 1000).append(" s below")
+					.append(", ").append((float) ratePerMinute).append(" per minute");
+		}
+	}
+
+	/**
+	 * @param probeId the one probe to track, or ALL_PROBES
+	 */
+	TempStats(long probeId, float lowLimit, float highLimit, float hysteresis, long debounceMillis,
+			TempAlarmListener alarmListener) {
+		this.probeFilter = probeId;
+		this.lowLimit = lowLimit;
+		this.highLimit = highLimit;
+		this.hysteresis = hysteresis;
+		this.debounceNanos = debounceMillis * NANOS_PER_MILLI;
+		this.alarmListener = alarmListener;
+	}
+
+	public synchronized void onSamples(String sensorID, TempSamples samples) {
+		for(int i = 0; i < samples.size(); i++) {
+			long probeId = samples.getProbeId(i);
+			if(probeFilter != ALL_PROBES && probeId != probeFilter) {
+				continue;
+			}
+			ProbeStats probe = findProbe(probeId);
+			if(probe != null && probe.add(samples.getValue(i), samples.getTimeNanos(i))) {
+				updateAlarm(samples.getValue(i), samples.getTimeNanos(i));
+			}
+		}
+	}
+
+	// boards have a handful of probes and send them in turn, so a scan from the last one is cheap
+	private ProbeStats findProbe(long probeId) {
+		for(int n = 0; n < probeCount; n++) {
+			int index = (lastProbe + n) % probeCount;
+			if(probes[index].probeId == probeId) {
+				lastProbe = index;
+				return probes[index];
+			}
+		}
+		if(probeCount == MAX_PROBES) {
+			return null;
+		}
+		lastProbe = probeCount;
+		probes[probeCount] = new ProbeStats(probeId);
+		return probes[probeCount++];
+	}
+
+	private void updateAlarm(float value, long timeNanos) {
+		int state = ALARM_NONE;
+		for(int i = 0; i < probeCount; i++) {
+			if(probes[i].alarm == ALARM_HIGH) {
+				state = ALARM_HIGH;
+				break;
+			}
+			if(probes[i].alarm == ALARM_LOW) {
+				state = ALARM_LOW;
+			}
+		}
+		if(state == alarm) {
+			return;
+		}
+		alarm = state;
+		if(alarmListener != null) {
+			alarmListener.onAlarm(state, value, timeNanos);
+		}
+	}
+
+	/** the statistics of every probe, one line each */
+	synchronized String summary() {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < probeCount; i++) {
+			if(i > 0) {
+				sb.append('\n');
+			}
+			probes[i].appendTo(sb);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+/**
+ * Maps the board's millisecond tick to phone time.
+ *
+ * Every frame with a tick is an observation: it arrived at phone time
+ * receivedMillis, so phone time minus tick is the clock offset plus the
+ * transport delay. The delay is never negative and often a few millisecs,
+ * so the smallest offsets seen are the best estimate of the offset itself.
+ * The smallest offset of each SEGMENT_TICKS of board time is kept for the
+ * last SEGMENTS segments, and a least squares line through them gives the
+ * drift of the board's clock against the phone's. An observation below the
+ * line moves the line down to it at once.
+ *
+ * Each observation costs a few arithmetic operations; the line is only
+ * refitted when a segment ends. The tick is a 32 bit millis() count and is
+ * unwrapped across its 49 day overflow. A tick that goes back by more than
+ * MAX_TICK_REORDER_MILLIS, or a frame more than MAX_DELAY_MILLIS later than
+ * the line allows, means the board restarted, and the estimate starts over.
+ *
+ * Frames with no known arrival time, such as those left over from an
+ * earlier read, go through map() instead: their ticks are mapped with the
+ * current line but are not observations, so a stale backlog can neither
+ * pull the line nor be taken for a restart.
+ */
+class BoardClock {
+
+	static final long SEGMENT_TICKS = 60 * 1000;
+	static final int SEGMENTS = 16;
+	static final long MAX_TICK_REORDER_MILLIS = 5 * 1000;
+	static final long MAX_DELAY_MILLIS = 30 * 1000;
+	// a ceramic resonator is good to about half a percent; allow twice that
+	static final double MAX_DRIFT = 0.01;
+
+	private static final long TICK_MASK = 0xffffffffL;
+
+	private long lastRawTick = -1;
+	private long tick; // unwrapped
+
+	// smallest offset of each finished segment, oldest first from segHead
+	private final long[] segTicks = new long[SEGMENTS];
+	private final long[] segOffsets = new long[SEGMENTS];
+	private int segHead;
+	private int segCount;
+
+	// current segment
+	private long segStart;
+	private long minTick;
+	private long minOffset;
+
+	// phone = tick + refOffset + drift * (tick - refTick)
+	private long refTick;
+	private double refOffset;
+	private double drift;
+
+	/**
+	 * Adds the observation of a frame and maps its tick to phone time.
+	 *
+	 * @param rawTick the board's 32 bit millis() count
+	 * @param receivedMillis when the frame arrived on the phone
+	 * @return the phone time of rawTick, in millis since the epoch
+	 */
+	long observe(long rawTick, long receivedMillis) {
+		rawTick &= TICK_MASK;
+		if(lastRawTick < 0) {
+			restart(rawTick, receivedMillis);
+			return receivedMillis;
+		}
+		// signed distance from the newest tick
+		long step = (rawTick - lastRawTick) & TICK_MASK;
+		if(step > (TICK_MASK >>> 1)) {
+			step -= TICK_MASK + 1;
+		}
+		if(step < -MAX_TICK_REORDER_MILLIS) {
+			restart(rawTick, receivedMillis);
+			return receivedMillis;
+		}
+		long frameTick = tick + step;
+		if(step > 0) {
+			tick = frameTick;
+			lastRawTick = rawTick;
+		}
+		long observed = receivedMillis - frameTick;
+		if(observed - offsetAt(frameTick) > MAX_DELAY_MILLIS) {
+			// a board that restarted and got past its old tick before reconnecting
+			restart(rawTick, receivedMillis);
+			return receivedMillis;
+		}
+
+		if(frameTick - segStart >= SEGMENT_TICKS) {
+			endSegment();
+			segStart = frameTick;
+			minTick = frameTick;
+			minOffset = observed;
+		}
+		else if(observed < minOffset) {
+			minTick = frameTick;
+			minOffset = observed;
+		}
+
+		if(observed < offsetAt(frameTick)) {
+			// arrived sooner than the line allows
+			refTick = frameTick;
+			refOffset = observed;
+		}
+		return toPhoneMillis(frameTick);
+	}
+
+	/**
+	 * Maps the tick of a frame whose arrival time is not known, without
+	 * adding it as an observation.
+	 *
+	 * @param rawTick the board's 32 bit millis() count
+	 * @param latestMillis the latest the frame can have arrived
+	 * @return the phone time of rawTick, or latestMillis if it cannot be mapped
+	 */
+	long map(long rawTick, long latestMillis) {
+		rawTick &= TICK_MASK;
+		if(lastRawTick < 0) {
+			return latestMillis;
+		}
+		long step = (rawTick - lastRawTick) & TICK_MASK;
+		if(step > (TICK_MASK >>> 1)) {
+			step -= TICK_MASK + 1;
+		}
+		if(step < -MAX_TICK_REORDER_MILLIS) {
+			// maybe a restart, which only an observation can tell
+			return latestMillis;
+		}
+		long frameTick = tick + step;
+		if(step > 0) {
+			tick = frameTick;
+			lastRawTick = rawTick;
+		}
+		return Math.min(toPhoneMillis(frameTick), latestMillis);
+	}
+
+	/** the current estimate of the phone time of an unwrapped tick */
+	private long toPhoneMillis(long unwrappedTick) {
+		return unwrappedTick + Math.round(offsetAt(unwrappedTick));
+	}
+
+	private double offsetAt(long unwrappedTick) {
+		return refOffset + drift * (unwrappedTick - refTick);
+	}
+
+	/** the estimated drift, phone millis per board milli minus one */
+	double getDrift() {
+		return drift;
+	}
+
+	private void restart(long rawTick, long receivedMillis) {
+		lastRawTick = rawTick;
+		tick = rawTick;
+		segHead = 0;
+		segCount = 0;
+		segStart = tick;
+		minTick = tick;
+		minOffset = receivedMillis - tick;
+		refTick = tick;
+		refOffset = minOffset;
+		drift = 0;
+	}
+
+	private void endSegment() {
+		int slot = (segHead + segCount) % SEGMENTS;
+		if(segCount == SEGMENTS) {
+			segHead = (segHead + 1) % SEGMENTS;
+		}
+		else {
+			++segCount;
+		}
+		segTicks[slot] = minTick;
+		segOffsets[slot] = minOffset;
+		if(segCount < 2) {
+			return;
+		}
+
+		// least squares, relative to the newest minimum to keep the sums small
+		double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+		for(int i = 0; i < segCount; i++) {
+			int s = (segHead + i) % SEGMENTS;
+			double x = segTicks[s] - minTick;
+			double y = segOffsets[s] - minOffset;
+			sumX += x;
+			sumY += y;
+			sumXX += x * x;
+			sumXY += x * y;
+		}
+		double denom = segCount * sumXX - sumX * sumX;
+		if(denom <= 0) {
+			return;
+		}
+		double slope = (segCount * sumXY - sumX * sumY) / denom;
+		drift = Math.max(-MAX_DRIFT, Math.min(slope, MAX_DRIFT));
+		// through the newest minimum, so the line stays at the lower edge
+		refTick = minTick;
+		refOffset = minOffset;
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import android.util.Log;
+
+/**
+ * Reassembles an MT_BULK_TRANSFER log download and decodes the stored samples
+ * frame by frame as they arrive.
+ *
+ * Every bulk frame uses the regular payload layout (msg type, 2 byte seq no,
+ * ..., crc) with a record type in byte 3:
+ *
+ * BULK_START: filename (12 bytes, NUL padded), age of the first sample in
+ *             seconds when START was sent (uint32), sampling interval in
+ *             seconds (uint16), total number of samples (uint32)
+ * BULK_DATA:  number of samples n, followed by n raw readings (lo, hi).
+ *             Every data frame but the last one is full, so the position of a
+ *             frame's samples in the log follows from its seq no.
+ * BULK_END:   total number of samples sent (uint32)
+ *
+ * All multi-byte values are little endian, like the seq no.
+ *
+ * Data frames may arrive out of order or twice, from a reordering link or a
+ * resend. A frame up to REORDER_WINDOW frames behind the newest one is still
+ * decoded, once; one further behind is dropped and stays counted as missing.
+ */
+class BulkTransferAssembler {
+
+	private static final String TAG = "BulkTransferAssembler";
+
+	static final int BULK_START = 1;
+	static final int BULK_DATA = 2;
+	static final int BULK_END = 3;
+
+	static final int RECORD_TYPE_INDEX = 3;
+	static final int FILENAME_INDEX = 4;
+	static final int FILENAME_SIZE = 12;
+	static final int START_AGE_INDEX = FILENAME_INDEX + FILENAME_SIZE;
+	static final int START_INTERVAL_INDEX = START_AGE_INDEX + 4;
+	static final int START_COUNT_INDEX = START_INTERVAL_INDEX + 2;
+	static final int DATA_COUNT_INDEX = 4;
+	static final int DATA_SAMPLES_INDEX = 5;
+	static final int END_COUNT_INDEX = 4;
+
+	// the last payload byte is the crc. data frames have no room for a tick, the
+	// driver ignores FRAME_HAS_TICK on them
+	static final int MAX_SAMPLES_PER_FRAME = (256 - 1 - DATA_SAMPLES_INDEX) / 2;
+
+	// one bit of received per frame index
+	static final int REORDER_WINDOW = 64;
+
+	private boolean active = false;
+	private String fileName;
+	private long firstSampleMillis;
+	private long intervalMillis;
+	private long expectedSamples;
+	private long decodedSamples;
+	private int startSeqNo;
+	// the highest data frame index decoded so far, 0 before the first one
+	private int newestIndex;
+	// bit i is set when data frame newestIndex - i has been decoded
+	private long received;
+	private int missingFrames;
+	private boolean lateFrame;
+
+	boolean isActive() {
+		return active;
+	}
+
+	String getFileName() {
+		return fileName;
+	}
+
+	/** data frames of the current or last transfer that have not arrived, up to the newest one */
+	int getMissingFrames() {
+		return missingFrames;
+	}
+
+	/** whether the samples of the last frame are older than ones decoded before them */
+	boolean wasLate() {
+		return lateFrame;
+	}
+
+	/**
+	 * Handles one bulk frame that already passed the crc check. Samples
+	 * carried by a data frame are decoded into rawOut / timeOut, which must
+	 * hold at least MAX_SAMPLES_PER_FRAME entries. frameMillis is when the
+	 * frame was sent, from its board tick, or else when it arrived; only
+	 * START's is used.
+	 *
+	 * @return the number of samples decoded from this frame
+	 */
+	int processFrame(byte[] payload, int seqNo, long frameMillis, int[] rawOut, long[] timeOut) {
+		int recordType = payload[RECORD_TYPE_INDEX] & 0xff;
+		lateFrame = false;
+
+		switch(recordType) {
+		case BULK_START:
+			if(active) {
+				Log.d(TAG,"new transfer started before END of " + fileName + ". "
+						+ decodedSamples + " of " + expectedSamples + " samples received");
+			}
+			active = true;
+			fileName = readFileName(payload);
+			firstSampleMillis = frameMillis - readUInt32(payload, START_AGE_INDEX) * 1000L;
+			intervalMillis = readUInt16(payload, START_INTERVAL_INDEX) * 1000L;
+			expectedSamples = readUInt32(payload, START_COUNT_INDEX);
+			decodedSamples = 0;
+			missingFrames = 0;
+			startSeqNo = seqNo;
+			newestIndex = 0;
+			received = 0;
+			Log.d(TAG,"bulk transfer of " + fileName + " started. " + expectedSamples + " samples");
+			return 0;
+		case BULK_DATA:
+			if(!active) {
+				Log.d(TAG,"data frame " + seqNo + " without START. dropped");
+				return 0;
+			}
+			// frames after START are numbered from 1
+			int frameIndex = (seqNo - startSeqNo) & 0xffff;
+			long lastIndex = (expectedSamples + MAX_SAMPLES_PER_FRAME - 1) / MAX_SAMPLES_PER_FRAME;
+			if(frameIndex == 0 || (expectedSamples > 0 && frameIndex > lastIndex)) {
+				Log.d(TAG,"data frame " + seqNo + " outside the transfer. dropped");
+				return 0;
+			}
+			if(frameIndex > newestIndex) {
+				int ahead = frameIndex - newestIndex;
+				received = ahead < REORDER_WINDOW ? received << ahead | 1 : 1;
+				missingFrames += ahead - 1;
+				newestIndex = frameIndex;
+			}
+			else {
+				int behind = newestIndex - frameIndex;
+				if(behind >= REORDER_WINDOW || (received & 1L << behind) != 0) {
+					// a duplicate, or too late to tell from one
+					Log.d(TAG,"data frame " + seqNo + " already in or too late. dropped");
+					return 0;
+				}
+				received |= 1L << behind;
+				--missingFrames;
+				lateFrame = true;
+			}
+
+			int count = Math.min(payload[DATA_COUNT_INDEX] & 0xff, MAX_SAMPLES_PER_FRAME);
+			long firstIndex = (long)(frameIndex - 1) * MAX_SAMPLES_PER_FRAME;
+			long sampleMillis = firstSampleMillis + firstIndex * intervalMillis;
+
+			int src = DATA_SAMPLES_INDEX;
+			for(int i = 0; i < count; i++) {
+				rawOut[i] = (payload[src] & 0xff) | (payload[src + 1] & 0xff) << 8;
+				timeOut[i] = sampleMillis;
+				sampleMillis += intervalMillis;
+				src += 2;
+			}
+			decodedSamples += count;
+			return count;
+		case BULK_END:
+			if(active) {
+				long sent = readUInt32(payload, END_COUNT_INDEX);
+				Log.d(TAG,"bulk transfer of " + fileName + " complete. " + decodedSamples + " of "
+						+ sent + " samples received, " + missingFrames + " frames missing");
+			}
+			active = false;
+			return 0;
+		default:
+			Log.d(TAG,"unknown bulk record type: " + recordType);
+			return 0;
+		}
+	}
+
+	private static String readFileName(byte[] payload) {
+		int len = 0;
+		while(len < FILENAME_SIZE && payload[FILENAME_INDEX + len] != 0) {
+			len++;
+		}
+		char[] name = new char[len];
+		for(int i = 0; i < len; i++) {
+			name[i] = (char)(payload[FILENAME_INDEX + i] & 0xff);
+		}
+		return new String(name);
+	}
+
+	static int readUInt16(byte[] buf, int index) {
+		return (buf[index] & 0xff) | (buf[index + 1] & 0xff) << 8;
+	}
+
+	static long readUInt32(byte[] buf, int index) {
+		return ((buf[index] & 0xff) | (buf[index + 1] & 0xff) << 8
+				| (buf[index + 2] & 0xff) << 16 | (long)(buf[index + 3] & 0xff) << 24);
+	}
+}
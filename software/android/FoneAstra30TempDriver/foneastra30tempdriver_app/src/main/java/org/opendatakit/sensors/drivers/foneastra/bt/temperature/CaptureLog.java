@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.opendatakit.sensors.SensorDataPacket;
+
+import android.util.Log;
+
+/**
+ * Binary capture of the raw bytes handed to the driver, written by a
+ * background thread so the parse thread never waits for storage.
+ *
+ * File format (big endian, as written by DataOutputStream):
+ *   header: MAGIC (int), VERSION (short)
+ *   records: type (byte), time in millis (long), length (int), data
+ * RECORD_PACKET records hold a SensorDataPacket payload, RECORD_NOTE records
+ * hold a UTF-8 diagnostics line.
+ *
+ * Records are queued in a bounded queue and dropped (and counted) when it is
+ * full. The writer flushes whenever it has drained the queue and starts a new
+ * file once the current one reaches maxFileBytes, keeping the newest maxFiles
+ * files.
+ */
+class CaptureLog {
+
+	private static final String TAG = "CaptureLog";
+
+	static final int MAGIC = 0x46414350; // "FACP"
+	static final short VERSION = 1;
+	static final byte RECORD_PACKET = 1;
+	static final byte RECORD_NOTE = 2;
+	static final String FILE_EXTENSION = ".facap";
+
+	static final int DEFAULT_QUEUE_SIZE = 1024;
+	static final long DEFAULT_MAX_FILE_BYTES = 4 * 1024 * 1024;
+	static final int DEFAULT_MAX_FILES = 8;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	private static final class Record {
+		final byte type;
+		final long timeMillis;
+		final byte[] data;
+
+		Record(byte type, long timeMillis, byte[] data) {
+			this.type = type;
+			this.timeMillis = timeMillis;
+			this.data = data;
+		}
+	}
+
+	// queued to stop the writer
+	private static final Record END = new Record((byte) 0, 0, null);
+
+	private final File directory;
+	private final String baseName;
+	private final long maxFileBytes;
+	private final int maxFiles;
+	private final BlockingQueue<Record> queue;
+	private final Thread writer;
+
+	private volatile boolean closed = false;
+	private volatile long dropped = 0;
+
+	// writer thread only
+	private DataOutputStream out;
+	private long fileBytes;
+	private int fileIndex = 0;
+
+	CaptureLog(File directory, String baseName) {
+		this(directory, baseName, DEFAULT_QUEUE_SIZE, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+	}
+
+	CaptureLog(File directory, String baseName, int queueSize, long maxFileBytes, int maxFiles) {
+		this.directory = directory;
+		this.baseName = baseName;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		this.queue = new ArrayBlockingQueue<Record>(queueSize);
+		this.writer = new Thread("FoneAstra capture") {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a copy of a raw packet payload, so the caller may reuse the
+	 * array as soon as this returns.
+	 */
+	void packet(byte[] payload, long timeMillis) {
+		if(closed || queue.remainingCapacity() == 0) {
+			++dropped;
+			return;
+		}
+		offer(new Record(RECORD_PACKET, timeMillis, payload.clone()));
+	}
+
+	void note(String line, long timeMillis) {
+		try {
+			offer(new Record(RECORD_NOTE, timeMillis, line.getBytes("UTF-8")));
+		}
+		catch(IOException ioe) {
+			// UTF-8 is always supported
+		}
+	}
+
+	long getDropped() {
+		return dropped;
+	}
+
+	/** stops the writer once everything queued so far is written */
+	void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			queue.put(END);
+		}
+		catch(InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void offer(Record record) {
+		if(closed || !queue.offer(record)) {
+			++dropped;
+		}
+	}
+
+	private void writeLoop() {
+		List<Record> batch = new ArrayList<Record>();
+		try {
+			while(true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+
+				for(int i = 0; i < batch.size(); i++) {
+					Record record = batch.get(i);
+					if(record == END) {
+						closeFile();
+						return;
+					}
+					write(record);
+				}
+				batch.clear();
+				if(out != null) {
+					out.flush();
+				}
+			}
+		}
+		catch(InterruptedException iex) {
+			Log.d(TAG,"writer interrupted");
+		}
+		catch(IOException ioe) {
+			Log.e(TAG,"capture stopped: " + ioe.getMessage());
+			closed = true;
+			queue.clear();
+		}
+		finally {
+			closeFile();
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		if(out == null || fileBytes >= maxFileBytes) {
+			closeFile();
+			openFile();
+		}
+		out.writeByte(record.type);
+		out.writeLong(record.timeMillis);
+		out.writeInt(record.data.length);
+		out.write(record.data);
+		fileBytes += 1 + 8 + 4 + record.data.length;
+	}
+
+	private File file(int index) {
+		return new File(directory, baseName + "-" + index + FILE_EXTENSION);
+	}
+
+	private void openFile() throws IOException {
+		if(fileIndex >= maxFiles) {
+			file(fileIndex - maxFiles).delete();
+		}
+		File file = file(fileIndex++);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), WRITE_BUFFER_SIZE));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		fileBytes = 4 + 2;
+		Log.d(TAG,"capturing to " + file.getAbsolutePath());
+	}
+
+	private void closeFile() {
+		if(out != null) {
+			try {
+				out.close();
+			}
+			catch(IOException ioe) {
+				Log.e(TAG,"close failed: " + ioe.getMessage());
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Reads the packets of a capture file back, e.g. to replay them through
+	 * OWTemperatureSensor.getSensorData. Notes are skipped and a truncated
+	 * last record is ignored.
+	 */
+	static List<SensorDataPacket> readPackets(File file) throws IOException {
+		List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if(in.readInt() != MAGIC || in.readShort() != VERSION) {
+				throw new IOException("not a capture file: " + file);
+			}
+			while(true) {
+				byte type;
+				try {
+					type = in.readByte();
+				}
+				catch(EOFException eof) {
+					break;
+				}
+				long timeMillis = in.readLong();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if(type == RECORD_PACKET) {
+					packets.add(new SensorDataPacket(data, timeMillis));
+				}
+			}
+		}
+		catch(EOFException eof) {
+			Log.d(TAG,"truncated record at the end of " + file);
+		}
+		finally {
+			in.close();
+		}
+		return packets;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import android.util.Log;
+
+/**
+ * Frame counters and diagnostics output for the driver.
+ *
+ * Counting is all the parse path does for a good frame. Strings are only
+ * built for frames that fail their check, at most MAX_DUMPS_PER_INTERVAL per
+ * DUMP_INTERVAL_MILLIS, and only when WARN is loggable for the driver's tag.
+ * Per frame / per reading messages need DEBUG, which is off unless enabled
+ * with "adb shell setprop log.tag.OWTemperatureSensor DEBUG".
+ */
+class DriverDiagnostics {
+
+	private static final String TAG = "OWTemperatureSensor";
+
+	static final int MAX_DUMPS_PER_INTERVAL = 4;
+	static final long DUMP_INTERVAL_MILLIS = 60 * 1000;
+	static final long SUMMARY_INTERVAL_MILLIS = 60 * 1000;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final boolean debugEnabled;
+	private final boolean dumpEnabled;
+	private final StringBuilder dump = new StringBuilder(1024);
+	// owned by the parser, only read here
+	private final SequenceTracker sequence;
+
+	private long framesOk;
+	private long framesFailed;
+	private long framesRejected;
+	private long framesUnknownType;
+	private long readings;
+	private long bytesReceived;
+	private long syncs;
+	private long resyncs;
+	private long discardedBytes;
+	private boolean resyncing;
+	private long rescans;
+	private long rescanSyncs;
+
+	private long dumpIntervalStart;
+	private int dumpsInInterval;
+	private long lastSummaryMillis;
+	private long lastSummaryBytes;
+	private long lastSummaryFramesOk;
+
+	DriverDiagnostics(SequenceTracker sequence) {
+		this.sequence = sequence;
+		debugEnabled = Log.isLoggable(TAG, Log.DEBUG);
+		dumpEnabled = Log.isLoggable(TAG, Log.WARN);
+	}
+
+	boolean isDebugEnabled() {
+		return debugEnabled;
+	}
+
+	void bytesReceived(int count) {
+		bytesReceived += count;
+	}
+
+	/**
+	 * Bytes skipped while looking for a sync run. The sync run normally
+	 * follows the previous frame right away, so the first discarded byte
+	 * since the last sync starts a resync.
+	 */
+	void discarded(int count) {
+		discardedBytes += count;
+		if(!resyncing) {
+			resyncing = true;
+			++resyncs;
+		}
+	}
+
+	void syncAcquired() {
+		++syncs;
+		resyncing = false;
+	}
+
+	/**
+	 * A bad frame was searched for the next sync run. found: one was, and
+	 * the parser continues from there.
+	 */
+	void rescanned(boolean found) {
+		++rescans;
+		if(found) {
+			++rescanSyncs;
+		}
+	}
+
+	void frameOk(int readingCount) {
+		++framesOk;
+		readings += readingCount;
+	}
+
+	void frameUnknownType(int msgType, int seqNo) {
+		++framesUnknownType;
+		if(debugEnabled) {
+			Log.d(TAG,"unknown msgType received: " + msgType + " pkt no: " + seqNo);
+		}
+	}
+
+	/**
+	 * A frame whose check did not match. Returns the hex dump if one was
+	 * logged, so it can also go to the capture log, or null.
+	 */
+	String frameFailed(byte[] payload, int seqNo, int receivedCRC, int calculatedCRC, boolean crc8, long now) {
+		++framesFailed;
+		return dumpFrame("FAILED. ", payload, seqNo, receivedCRC, calculatedCRC, crc8, now);
+	}
+
+	/** an xor checked frame while crc8 is required */
+	String frameRejected(byte[] payload, int seqNo, long now) {
+		++framesRejected;
+		return dumpFrame("REJECTED. ", payload, seqNo, payload[payload.length - 1] & 0xff, -1, false, now);
+	}
+
+	long getFramesOk() {
+		return framesOk;
+	}
+
+	long getFramesFailed() {
+		return framesFailed;
+	}
+
+	long getFramesRejected() {
+		return framesRejected;
+	}
+
+	long getFramesUnknownType() {
+		return framesUnknownType;
+	}
+
+	long getReadings() {
+		return readings;
+	}
+
+	long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	long getSyncs() {
+		return syncs;
+	}
+
+	long getResyncs() {
+		return resyncs;
+	}
+
+	long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	long getRescans() {
+		return rescans;
+	}
+
+	long getRescanSyncs() {
+		return rescanSyncs;
+	}
+
+	/**
+	 * Logs the counters at most once per SUMMARY_INTERVAL_MILLIS, with the
+	 * raw byte rate and the goodput (frames that passed their check per
+	 * second) since the last summary.
+	 */
+	void maybeLogSummary(long now) {
+		if(debugEnabled && now - lastSummaryMillis >= SUMMARY_INTERVAL_MILLIS) {
+			if(lastSummaryMillis > 0) {
+				double secs = (now - lastSummaryMillis) / 1000.0;
+				Log.d(TAG, String.format("%.0f bytes/s, goodput %.2f frames/s",
+						(bytesReceived - lastSummaryBytes) / secs, (framesOk - lastSummaryFramesOk) / secs));
+			}
+			lastSummaryMillis = now;
+			lastSummaryBytes = bytesReceived;
+			lastSummaryFramesOk = framesOk;
+			Log.d(TAG, toString());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "frames ok: " + framesOk + " failed: " + framesFailed + " rejected: " + framesRejected
+				+ " unknown type: " + framesUnknownType + " readings: " + readings + " bytes: " + bytesReceived
+				+ " resyncs: " + resyncs + " discarded: " + discardedBytes + " rescans: " + rescans
+				+ " (" + rescanSyncs + " synced) gaps: " + sequence.getGaps()
+				+ " missing: " + sequence.getMissing() + " recovered: " + sequence.getRecovered()
+				+ " duplicates: " + sequence.getDuplicates() + " lost: " + sequence.getLost();
+	}
+
+	private String dumpFrame(String result, byte[] payload, int seqNo, int receivedCRC, int calculatedCRC,
+			boolean crc8, long now) {
+		if(!dumpEnabled) {
+			return null;
+		}
+		if(now - dumpIntervalStart >= DUMP_INTERVAL_MILLIS) {
+			dumpIntervalStart = now;
+			dumpsInInterval = 0;
+		}
+		if(dumpsInInterval >= MAX_DUMPS_PER_INTERVAL) {
+			return null;
+		}
+		++dumpsInInterval;
+
+		dump.setLength(0);
+		dump.append(result).append("pkt no: ").append(seqNo).append(" crc rcvd: ").append(receivedCRC);
+		if(calculatedCRC >= 0) {
+			dump.append(" crc calculated: ").append(calculatedCRC);
+		}
+		dump.append(crc8 ? " (crc8)" : " (xor)").append('\n');
+		for(int i = 0; i < payload.length; i++) {
+			int b = payload[i] & 0xff;
+			dump.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xf]);
+			dump.append((i & 0x1f) == 0x1f ? '\n' : ' ');
+		}
+		String str = dump.toString();
+		Log.w(TAG, str);
+		return str;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame integrity checks. Both read the payload 8 bytes at a time through a
+ * little endian ByteBuffer view.
+ *
+ * xor:  the original check, still sent by older firmware.
+ * crc8: CRC-8/MAXIM (Dallas 1-Wire, poly x^8 + x^5 + x^4 + 1, reflected, init
+ *       0), the same crc OneWire::crc8 computes on the board. Table driven and
+ *       sliced by 8: one lookup per byte and no dependency between the
+ *       lookups of a word except the first.
+ */
+final class FrameCheck {
+
+	private static final int POLY_REFLECTED = 0x8c;
+
+	// CRC_TABLES[k][x] is the crc register after feeding x followed by k
+	// zero bytes through an empty register
+	private static final int[][] CRC_TABLES = new int[8][256];
+
+	static {
+		for(int x = 0; x < 256; x++) {
+			int crc = x;
+			for(int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY_REFLECTED : crc >>> 1;
+			}
+			CRC_TABLES[0][x] = crc;
+		}
+		for(int k = 1; k < 8; k++) {
+			for(int x = 0; x < 256; x++) {
+				CRC_TABLES[k][x] = CRC_TABLES[0][CRC_TABLES[k - 1][x]];
+			}
+		}
+	}
+
+	private FrameCheck() {
+	}
+
+	/**
+	 * @param buf a little endian view of the data
+	 */
+	static int xor(ByteBuffer buf, int off, int len) {
+		long acc = 0;
+		int i = off;
+		int wordsEnd = off + (len & ~7);
+		for(; i < wordsEnd; i += 8) {
+			acc ^= buf.getLong(i);
+		}
+		acc ^= acc >>> 32;
+		acc ^= acc >>> 16;
+		acc ^= acc >>> 8;
+		int x = (int) acc & 0xff;
+		for(int end = off + len; i < end; i++) {
+			x ^= buf.get(i);
+		}
+		return x & 0xff;
+	}
+
+	/**
+	 * @param buf a little endian view of the data
+	 */
+	static int crc8(ByteBuffer buf, int off, int len) {
+		final int[] t0 = CRC_TABLES[0], t1 = CRC_TABLES[1], t2 = CRC_TABLES[2], t3 = CRC_TABLES[3],
+				t4 = CRC_TABLES[4], t5 = CRC_TABLES[5], t6 = CRC_TABLES[6], t7 = CRC_TABLES[7];
+		int crc = 0;
+		int i = off;
+		int wordsEnd = off + (len & ~7);
+		for(; i < wordsEnd; i += 8) {
+			long w = buf.getLong(i);
+			int lo = (int) w ^ crc;
+			int hi = (int) (w >>> 32);
+			crc = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+					^ t3[hi & 0xff] ^ t2[(hi >>> 8) & 0xff] ^ t1[(hi >>> 16) & 0xff] ^ t0[hi >>> 24];
+		}
+		for(int end = off + len; i < end; i++) {
+			crc = t0[(crc ^ buf.get(i)) & 0xff];
+		}
+		return crc;
+	}
+}
@@ -16,24 +16,18 @@
 
 package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.SimpleTimeZone;
 
 import org.opendatakit.sensors.DataSeries;
 import org.opendatakit.sensors.SensorDataPacket;
 import org.opendatakit.sensors.SensorDataParseResponse;
 import org.opendatakit.sensors.drivers.AbstractDriverBaseV2;
 
-import java.text.ParseException;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
@@ -44,10 +38,6 @@ public class OWTemperatureSensor extends AbstractDriverBaseV2 {
 	private static final String sensor_type = "Temperature";
 	private static final String msg_type = "Celsius";
 	private static final boolean DEBUG = false;
-	private float SENSOR_RESOLUTION = 0.0625F; // 12 bit precision ds18b20
-												// sensor
-	private int DATABITSMASK = 0x7FF; // 11 bits of data excluding the sign bit
-	private int SIGNBITMASK = 0x800; // 12th bit is the sign bit
 	
 	private static final int PAYLOAD_SIZE = 256; //including crc
 	private static final int SYNC_BYTE = 0xaa; //10101010
@@ -56,15 +46,118 @@ public class OWTemperatureSensor extends AbstractDriverBaseV2 {
 	//message types
 	private static final int MT_SINGLE_READING = 1; //1 temp reading per msg
 	private static final int MT_BULK_TRANSFER = 2; //variable size. will have more metadata
-//	private static final int MT_COLLECT_ALL = 3;
+	private static final int MT_COLLECT_ALL = 3; //host -> board. start a bulk transfer of the stored log. the sketch keeps no log and ignores it
 //	private static final int MT_COLLECT_ONE = 4;
 //	private static final int MT_DELETE_ALL = 5;
 //	private static final int MT_DELETE_ONE = 6;
+	private static final int MT_MULTI_READING = 7; //up to MAX_READINGS_PER_MULTI readings per msg. no firmware sends it yet
+	private static final int MT_MULTI_PROBE = 8; //one reading from each probe on the board's 1-Wire bus
+	private static final int MT_RESEND = 9; //host -> board. resend the readings of a range of seq nos
+	private static final int MT_RESENT_READINGS = 10; //readings of earlier seq nos, resent on MT_RESEND
+	private static final int MT_SET_RESOLUTION = 11; //host -> board. probe resolution and sampling interval
 	
+	//the high bit of MSG_TYPE selects the frame check in the CRC byte. set: CRC-8/MAXIM,
+	//clear: xor of all bytes (firmware before crc8 support)
+	private static final int MSG_TYPE_MASK = 0x0f;
+	private static final int FRAME_CHECK_CRC8 = 0x80;
+	//the next bit is set when the 4 bytes before the CRC hold the board's millis() tick (little
+	//endian): when the reading was taken for MT_SINGLE_READING, when the msg was sent for msgs with
+	//ages, and when BULK_START was sent. BULK_DATA frames carry no tick, their samples run up to the
+	//CRC, so the bit is ignored on them
+	private static final int FRAME_HAS_TICK = 0x40;
+	private static final int TICK_INDEX = PAYLOAD_SIZE - 1 - 4;
+	//the 2 bits below hold 12 minus the probe resolution in bits, so firmware that does not set
+	//them reports the DS18B20's default of 12 bits
+	//a MSG_TYPE equal to SYNC_BYTE (crc8, no tick, 10 bits, MT_RESENT_READINGS) is reserved: the
+	//SYNCED state skips it as padding, so such a frame would be read one byte late and fail its check.
+	//the board sets FRAME_HAS_TICK on every msg it sends, which SYNC_BYTE has clear. a BULK_DATA
+	//frame, which has the bit clear, is MT_BULK_TRANSFER and so can never equal SYNC_BYTE either
+	private static final int FRAME_RESOLUTION_MASK = 0x30;
+	private static final int FRAME_RESOLUTION_SHIFT = 4;
+	
+	//payload structure of MT_MULTI_READING is:
+	//MSG_TYPE (1 byte), SEQ_NO (2 bytes), N (1 byte), N x (reading lo, reading hi, age lo, age hi), CRC (1 byte)
+	//age is the number of millisecs between taking the reading and sending the msg. the sketch sends
+	//one MT_SINGLE_READING per reading, the parser takes this for firmware that batches
+	private static final int MULTI_COUNT_INDEX = 3;
+	private static final int MULTI_READINGS_INDEX = 4;
+	private static final int MULTI_READING_SIZE = 4;
+	static final int MAX_READINGS_PER_MULTI = (PAYLOAD_SIZE - 1 - MULTI_READINGS_INDEX) / MULTI_READING_SIZE;
+	static final int MAX_READINGS_PER_MULTI_WITH_TICK = (TICK_INDEX - MULTI_READINGS_INDEX) / MULTI_READING_SIZE;
+	
+	//payload structure of MT_MULTI_PROBE is:
+	//MSG_TYPE (1 byte), SEQ_NO (2 bytes), N (1 byte), N x (ROM ID (8 bytes), reading lo, reading hi, age lo, age hi), CRC (1 byte)
+	//the ROM ID is in bus order: family code, 48 bit serial number, ROM crc
+	private static final int PROBE_COUNT_INDEX = 3;
+	private static final int PROBE_READINGS_INDEX = 4;
+	private static final int ROM_ID_SIZE = 8;
+	private static final int PROBE_READING_SIZE = ROM_ID_SIZE + 4;
+	static final int MAX_PROBES_PER_FRAME = (PAYLOAD_SIZE - 1 - PROBE_READINGS_INDEX) / PROBE_READING_SIZE;
+	
+	//arguments of MT_RESEND are: first SEQ_NO (2 bytes), number of SEQ_NOs (2 bytes).
+	//MT_RESENT_READINGS has the payload structure of MT_MULTI_READING, with the SEQ_NO of its
+	//first reading in SEQ_NO and one reading per SEQ_NO from there on. only single probe boards
+	//resend, and only their last RESEND_HISTORY readings; frames missing from further back, or from a
+	//board that sends MT_MULTI_PROBE, are counted as lost instead of requested
+	static final int MAX_RESEND_RANGES = 4;
+	static final int RESEND_HISTORY = 48;
+	
+	//arguments of MT_SET_RESOLUTION are: resolution in bits (1 byte, 9 - 12), 0 (1 byte), sampling
+	//interval in millisecs (2 bytes). the board never samples faster than a conversion at that
+	//resolution takes, 0 samples as fast as that. the board answers with frames of the new resolution
+	static final int MIN_RESOLUTION_BITS = 9;
+	static final int MAX_RESOLUTION_BITS = 12;
+	
+	private static final int MAX_READINGS_PER_FRAME = 
+			Math.max(MAX_READINGS_PER_MULTI, BulkTransferAssembler.MAX_SAMPLES_PER_FRAME);
+	
+	private static final int CMD_ARGS_SIZE = 4;
+	
+	//configureCmd settings
+	static final String SETTING_COLLECT_ALL = "collect_all";
+	static final String SETTING_REQUIRE_CRC8 = "require_crc8"; //reject xor checked frames
+	static final String SETTING_CAPTURE = "capture"; //binary capture of the raw input to external storage
+	static final String SETTING_PACKED_OUTPUT = "packed_output"; //one Bundle of primitive arrays per call, see SampleBatch
+	static final String SETTING_RESEND_MISSING = "resend_missing"; //ask the board for the frames missing since the last gap
+	static final String SETTING_RESOLUTION = "resolution"; //probe resolution and sampling interval, see MT_SET_RESOLUTION
+	static final String PARAM_ENABLED = "enabled";
+	static final String PARAM_BITS = "bits";
+	static final String PARAM_INTERVAL_MILLIS = "interval_millis";
 	
 	int syncCounter = 0;
 	int payloadCounter = 0;
-	byte[] payloadBuffer;
+	final byte[] payloadBuffer = new byte[PAYLOAD_SIZE];
+	private final ByteBuffer payloadView = ByteBuffer.wrap(payloadBuffer).order(ByteOrder.LITTLE_ENDIAN);
+	private boolean requireCrc8 = false;
+	// sequence numbers of the live frames, for dedupe and resend requests
+	private final SequenceTracker sequence = new SequenceTracker();
+	private final DriverDiagnostics diagnostics = new DriverDiagnostics(sequence);
+	
+	private final BulkTransferAssembler bulkTransfer = new BulkTransferAssembler();
+	private final BoardClock boardClock = new BoardClock();
+	// arrival time of the packet being parsed
+	private long packetMillis;
+	// false while parsing bytes left over from an earlier call, whose
+	// arrival time is lost
+	private boolean arrivalKnown;
+	// readings decoded from the current frame
+	private final int[] frameRaw = new int[MAX_READINGS_PER_FRAME];
+	private final long[] frameTimes = new long[MAX_READINGS_PER_FRAME];
+	private final long[] frameProbes = new long[MAX_PROBES_PER_FRAME];
+	// resolution reported by the last good frame
+	private int resolutionBits = MAX_RESOLUTION_BITS;
+	// readings decoded by the current getSensorData call
+	private final SampleBatch samples = new SampleBatch(MAX_READINGS_PER_FRAME);
+	// readings decoded beyond maxNumReadings, returned from pendingStart on by the next calls
+	private final SampleBatch pending = new SampleBatch(MAX_READINGS_PER_FRAME);
+	private int pendingStart;
+	private boolean packedOutput = false;
+	// set when samples holds readings that are older than readings before them
+	private boolean outOfOrder = false;
+	private final int[] resendFirst = new int[MAX_RESEND_RANGES];
+	private final int[] resendCount = new int[MAX_RESEND_RANGES];
+	// set by the last live frame: MT_MULTI_PROBE boards cannot resend
+	private boolean multiProbeBoard = false;
 	
 	private enum ParsingState {
 		SYNCING,
@@ -72,187 +165,587 @@ public class OWTemperatureSensor extends AbstractDriverBaseV2 {
 		PARSING_PAYLOAD
 	}
 	
-	private FileOutputStream logger;
+	private CaptureLog capture;
 	private ParsingState state = ParsingState.SYNCING;
 
 	public OWTemperatureSensor() {		
 		
 		if(DEBUG) {
-			long now = System.currentTimeMillis();
-			File directory = Environment.getExternalStorageDirectory();
-			File logFile = new File(directory, TAG + now + ".txt");
-
-			try {
-				logger = new FileOutputStream(logFile, true);
-			}
-			catch(IOException ioe) {
-				ioe.printStackTrace();
-			}
+			startCapture();
 		}
 		String str = "PAYLOAD_SIZE: " + PAYLOAD_SIZE + " MAX_SYNC_BYTES: " + MAX_SYNC_BYTES;
 		Log.d(TAG," constructed. " + str);
 		writeToFile(str);
 	}
 	
+	private void startCapture() {
+		if(capture == null) {
+			File directory = Environment.getExternalStorageDirectory();
+			capture = new CaptureLog(directory, TAG + System.currentTimeMillis());
+		}
+	}
+	
+	private void stopCapture() {
+		if(capture != null) {
+			capture.close();
+			capture = null;
+		}
+	}
+	
 	void writeToFile(String str) {
-		if(DEBUG) {
-			if(logger != null) {
-				String ts = DateFormat.getDateTimeInstance(DateFormat.SHORT,DateFormat.MEDIUM).format(new Date());
-				try {
-					String toWrite = ts + " : " + str + "\n";
-					logger.write(toWrite.getBytes());
-					logger.flush();
-				}
-				catch(IOException ioe) {
-					ioe.printStackTrace();
-				}
-			}
+		if(capture != null) {
+			capture.note(str, System.currentTimeMillis());
 		}
 	}	
 
 	@Override
 	public SensorDataParseResponse getSensorData(long maxNumReadings, List<SensorDataPacket> rawData, byte [] remainingData) {
 		
-		List<Bundle> allData = new ArrayList<Bundle>();
+		// maxNumReadings <= 0 means no limit
+		long maxReadings = maxNumReadings > 0 ? maxNumReadings : Long.MAX_VALUE;
 		
 //		Log.d(TAG," sensor driver. sdp list sz: " + rawData.size());
-		List<Byte> dataBuffer = new ArrayList<Byte>();
 		
-		// Add the new raw data
+		// The parser does not keep state between calls. A partial frame left
+		// over from the previous call comes back in remainingData and is
+		// parsed again before the new packets. All input is decoded, so
+		// remainingData never holds more than one frame; readings beyond
+		// maxReadings wait in pending instead.
+		resetParser();
+		samples.clear();
+		outOfOrder = false;
+		
+		long now = System.currentTimeMillis();
+		packetMillis = now;
+		arrivalKnown = false;
+		
+		if(remainingData != null) {
+			parseData(remainingData, 0, remainingData.length);
+		}
+		
+		// Run the parser directly over each packet's payload.
 		for(SensorDataPacket pkt: rawData) {
 			byte [] payload = pkt.getPayload();
 //			Log.d(TAG, " sdp length: " + payload.length);
 
-			for (int i = 0; i < payload.length; i++) {
-				dataBuffer.add(payload[i]);
-			}			
+			if(payload == null) {
+				continue;
+			}
+			
+			// frames completed by this packet arrived with it
+			packetMillis = pkt.getTime() > 0 ? pkt.getTime() : now;
+			arrivalKnown = true;
+			
+			if(capture != null) {
+				capture.packet(payload, packetMillis);
+			}
+			diagnostics.bytesReceived(payload.length);
+			
+			parseData(payload, 0, payload.length);
 		}
 		
-		parseData(dataBuffer,allData);
+		diagnostics.maybeLogSummary(now);
 		
-		return new SensorDataParseResponse(allData, null);
+		if(outOfOrder) {
+			samples.sortByTime();
+		}
+		limitReadings(maxReadings);
+		return new SensorDataParseResponse(toBundles(samples), partialFrame());
 	}
 	
-	private void parseData(List<Byte> dataBuffer, List<Bundle> parsedDataBundles) {
+	/**
+	 * Leaves at most maxReadings readings in samples, the ones held back by
+	 * earlier calls first, and holds back the rest.
+	 */
+	private void limitReadings(long maxReadings) {
+		int held = pending.size() - pendingStart;
+		if(held == 0 && samples.size() <= maxReadings) {
+			return;
+		}
+		pending.addFrom(samples, 0, samples.size());
+		held += samples.size();
+		int count = (int) Math.min(maxReadings, held);
+		samples.clear();
+		samples.addFrom(pending, pendingStart, count);
+		pendingStart += count;
+		if(pendingStart == pending.size()) {
+			pending.clear();
+			pendingStart = 0;
+		}
+		else if(pendingStart > pending.size() / 2) {
+			// each reading is moved down at most once per halving, so draining stays linear
+			pending.removeFirst(pendingStart);
+			pendingStart = 0;
+		}
+	}
+	
+	/** whether readings decoded by earlier calls wait for the next getSensorData call */
+	boolean hasPendingReadings() {
+		return pending.size() > pendingStart;
+	}
+	
+	/**
+	 * Packed output is a single Bundle for the whole batch (none if it is
+	 * empty). Otherwise every sample gets its own Bundle with the reading as
+	 * a String, which is what existing consumers expect.
+	 */
+	private List<Bundle> toBundles(SampleBatch batch) {
+		if(packedOutput) {
+			List<Bundle> packed = new ArrayList<Bundle>(1);
+			if(batch.size() > 0) {
+				packed.add(batch.toBundle(sensor_type, msg_type));
+			}
+			return packed;
+		}
+		
+		List<Bundle> bundles = new ArrayList<Bundle>(batch.size());
+		for(int i = 0; i < batch.size(); i++) {
+			int raw = batch.getRaw(i);
+			Bundle sample = getTempSample((byte)(raw >> 8), (byte)raw, batch.getTimeMillis(i));
+			long probeId = batch.getProbeId(i);
+			if(probeId != SampleBatch.NO_PROBE_ID) {
+				sample.putString(SampleBatch.KEY_PROBE_ID, SampleBatch.probeIdToString(probeId));
+			}
+			bundles.add(sample);
+		}
+		return bundles;
+	}
+	
+	private void resetParser() {
+		syncCounter = 0;
+		payloadCounter = 0;
+		state = ParsingState.SYNCING;
+	}
+	
+	/**
+	 * @return the bytes that put a freshly reset parser back into the
+	 * current state, or null if the parser is between frames.
+	 */
+	private byte[] partialFrame() {
+		int syncBytes;
+		switch(state) {
+		case SYNCING:
+			syncBytes = syncCounter;
+			break;
+		default:
+			syncBytes = MAX_SYNC_BYTES;
+			break;
+		}
 		
-//		Log.d(TAG,"parseData. dataBuffer len: " + dataBuffer.size());
-		while(dataBuffer.size() > 0) {
-			byte aByte = dataBuffer.remove(0);
-			int maskedByte = aByte & 0xff;
+		int length = syncBytes + payloadCounter;
+		if(length == 0) {
+			return null;
+		}
 		
+		byte[] frame = new byte[length];
+		for(int i = 0; i < syncBytes; i++) {
+			frame[i] = (byte) SYNC_BYTE;
+		}
+		System.arraycopy(payloadBuffer, 0, frame, syncBytes, payloadCounter);
+		return frame;
+	}
+	
+	DriverDiagnostics getDiagnostics() {
+		return diagnostics;
+	}
+	
+	@Override
+	public byte[] configureCmd(String setting, Bundle config) {
+		if(SETTING_COLLECT_ALL.equals(setting)) {
+			Log.d(TAG,"requesting bulk transfer");
+			return buildCommand(MT_COLLECT_ALL, new byte[0]);
+		}
+		if(SETTING_RESEND_MISSING.equals(setting)) {
+			return buildResendCommands();
+		}
+		if(SETTING_RESOLUTION.equals(setting)) {
+			return buildResolutionCommand(config);
+		}
+		if(SETTING_REQUIRE_CRC8.equals(setting)) {
+			requireCrc8 = config == null || config.getBoolean(PARAM_ENABLED, true);
+			Log.d(TAG,"require crc8: " + requireCrc8);
+			return null;
+		}
+		if(SETTING_PACKED_OUTPUT.equals(setting)) {
+			packedOutput = config == null || config.getBoolean(PARAM_ENABLED, true);
+			Log.d(TAG,"packed output: " + packedOutput);
+			return null;
+		}
+		if(SETTING_CAPTURE.equals(setting)) {
+			if(config == null || config.getBoolean(PARAM_ENABLED, true)) {
+				startCapture();
+			}
+			else {
+				stopCapture();
+			}
+			return null;
+		}
+		
+		Log.d(TAG,"unknown setting: " + setting);
+		return null;
+	}
+	
+	/**
+	 * One MT_RESEND command per missing range the board can still resend,
+	 * oldest first, concatenated. null if nothing is missing.
+	 */
+	private byte[] buildResendCommands() {
+		sequence.expireMissing(multiProbeBoard ? 0 : RESEND_HISTORY);
+		int ranges = sequence.getMissingRanges(resendFirst, resendCount, MAX_RESEND_RANGES);
+		if(ranges == 0) {
+			return null;
+		}
+		ByteArrayOutputStream cmds = new ByteArrayOutputStream();
+		for(int i = 0; i < ranges; i++) {
+			Log.d(TAG,"requesting resend of " + resendCount[i] + " frames from " + resendFirst[i]);
+			byte[] args = { (byte) resendFirst[i], (byte) (resendFirst[i] >> 8),
+					(byte) resendCount[i], (byte) (resendCount[i] >> 8) };
+			byte[] cmd = buildCommand(MT_RESEND, args);
+			cmds.write(cmd, 0, cmd.length);
+		}
+		return cmds.toByteArray();
+	}
+	
+	/**
+	 * MT_SET_RESOLUTION from PARAM_BITS and PARAM_INTERVAL_MILLIS. Without
+	 * an interval the board samples as fast as the resolution allows. null
+	 * for a resolution the DS18B20 does not have.
+	 */
+	private static byte[] buildResolutionCommand(Bundle config) {
+		int bits = config == null ? MAX_RESOLUTION_BITS : config.getInt(PARAM_BITS, MAX_RESOLUTION_BITS);
+		if(bits < MIN_RESOLUTION_BITS || bits > MAX_RESOLUTION_BITS) {
+			Log.d(TAG,"unsupported resolution: " + bits + " bits");
+			return null;
+		}
+		int intervalMillis = config == null ? 0 : config.getInt(PARAM_INTERVAL_MILLIS, 0);
+		intervalMillis = Math.max(0, Math.min(intervalMillis, 0xffff));
+		Log.d(TAG,"requesting " + bits + " bit resolution, sampling interval " + intervalMillis + " ms");
+		byte[] args = { (byte) bits, 0, (byte) intervalMillis, (byte) (intervalMillis >> 8) };
+		return buildCommand(MT_SET_RESOLUTION, args);
+	}
+	
+	/**
+	 * Commands to the board are framed like the board's messages, but short:
+	 * sync bytes, msg type, CMD_ARGS_SIZE bytes of arguments (zero padded) and
+	 * an xor crc over msg type and arguments.
+	 */
+	private static byte[] buildCommand(int msgType, byte[] args) {
+		byte[] cmd = new byte[MAX_SYNC_BYTES + 1 + CMD_ARGS_SIZE + 1];
+		for(int i = 0; i < MAX_SYNC_BYTES; i++) {
+			cmd[i] = (byte) SYNC_BYTE;
+		}
+		cmd[MAX_SYNC_BYTES] = (byte) msgType;
+		System.arraycopy(args, 0, cmd, MAX_SYNC_BYTES + 1, Math.min(args.length, CMD_ARGS_SIZE));
+		
+		byte crc = 0;
+		for(int i = MAX_SYNC_BYTES; i < cmd.length - 1; i++) {
+			crc ^= cmd[i];
+		}
+		cmd[cmd.length - 1] = crc;
+		return cmd;
+	}
+	
+	/** Parses all of data, decoding the readings of its complete frames into samples. */
+	private void parseData(byte[] data, int offset, int length) {
+		
+//		Log.d(TAG,"parseData. data len: " + length);
+		final int end = offset + length;
+		int pos = offset;
+		
+		while(pos < end) {
 			switch(state) {
 			case SYNCING:
 //				Log.d(TAG,"SYNCING");
-				if(maskedByte == SYNC_BYTE)					
-					++syncCounter;			
-				else 
-					syncCounter = 0;
+				// scan the sync run without leaving the loop for every byte
+				while(pos < end && syncCounter < MAX_SYNC_BYTES) {
+					if((data[pos++] & 0xff) == SYNC_BYTE)					
+						++syncCounter;			
+					else {
+						diagnostics.discarded(syncCounter + 1);
+						syncCounter = 0;
+					}
+				}
 				
 				if(syncCounter >= MAX_SYNC_BYTES) {
 					syncCounter = 0;
 					state = ParsingState.SYNCED;
+					diagnostics.syncAcquired();
 				}
 				break;
 			case SYNCED:
-				//might have more sync bytes. ignore them
+				//might have more sync bytes. ignore them, no MSG_TYPE equals SYNC_BYTE
 //				Log.d(TAG,"SYNCED");
-				if(maskedByte != SYNC_BYTE) {
-					payloadBuffer = new byte[PAYLOAD_SIZE];
+				byte aByte = data[pos++];
+				if((aByte & 0xff) != SYNC_BYTE) {
 					payloadBuffer[payloadCounter++] = aByte;
 					state = ParsingState.PARSING_PAYLOAD;
 				}
 				break;
 			case PARSING_PAYLOAD:
+				// copy as much of the payload as this chunk holds in one go
+				int toCopy = Math.min(PAYLOAD_SIZE - payloadCounter, end - pos);
+				System.arraycopy(data, pos, payloadBuffer, payloadCounter, toCopy);
+				payloadCounter += toCopy;
+				pos += toCopy;
+				
 				if(payloadCounter == PAYLOAD_SIZE) {
-					//we have a complete packet. process it.										
-					processCompletePacket(parsedDataBundles);
 					payloadCounter = 0;
 					state = ParsingState.SYNCING;
-				}
-				else {
-					payloadBuffer[payloadCounter++] = aByte;
+					//we have a complete packet. process it. a bad one may leave the parser inside the next frame
+					processCompletePacket();
 				}
 				break;
 			}
 		}
 	}
 	
-	private void processCompletePacket(List<Bundle> parsedDataBundles) {
+	private void processCompletePacket() {
 		//mt, seqNo, msg, crc
 //		Log.d(TAG,"processCompletePacket payloadCounter: " + payloadCounter);
-		StringBuffer strBuff = new StringBuffer();
-		String logStr;
 		
-		int msgType = payloadBuffer[0] & 0xff;
+		int msgType = payloadBuffer[0] & MSG_TYPE_MASK;
+		boolean crc8Frame = (payloadBuffer[0] & FRAME_CHECK_CRC8) != 0;
 		int seqLow = payloadBuffer[1] & 0xff;
 		int seqHi = payloadBuffer[2] & 0xff;
 		int seqNo = seqHi << 8 | seqLow;
 		int receivedCRC = payloadBuffer[PAYLOAD_SIZE - 1] & 0xff;
-		byte calcCRC = 0;
 		
-		for(int i = 0; i < (PAYLOAD_SIZE -1); i++) {
-			strBuff.append((payloadBuffer[i] & 0xff) + " ");
-			calcCRC = (byte) (calcCRC ^ payloadBuffer[i]);
+		if(!crc8Frame && requireCrc8) {
+			String dump = diagnostics.frameRejected(payloadBuffer, seqNo, packetMillis);
+			if(dump != null) {
+				writeToFile(dump);
+			}
+			return;
 		}
-		strBuff.append(receivedCRC);
 		
-		int maskedCalcCRC = calcCRC & 0xff;
-		String str = "pkt no: " + seqNo + " crc rcvd: " + receivedCRC + " crc calculated: " + maskedCalcCRC;			
+		int maskedCalcCRC = crc8Frame ? FrameCheck.crc8(payloadView, 0, PAYLOAD_SIZE - 1)
+				: FrameCheck.xor(payloadView, 0, PAYLOAD_SIZE - 1);
 		
-		if(maskedCalcCRC == receivedCRC) {
-			logStr = "PASSED. ";
-			switch(msgType) {
-			case MT_SINGLE_READING:
-				Log.d(TAG,"Got SINGLE_READING msg");
-				Bundle tempReading = getTempSample(payloadBuffer[4],payloadBuffer[3]);
-				parsedDataBundles.add(tempReading);
-;				break;
-			case MT_BULK_TRANSFER:
-				Log.d(TAG,"Got BULK_TRANSFER msg");
-				//12 bytes of filename, START,timestamp,data, END
-				break;
-			default: 
-				Log.d(TAG,"unknown msgType received: " + msgType);
+		if(maskedCalcCRC != receivedCRC) {
+			String dump = diagnostics.frameFailed(payloadBuffer, seqNo, receivedCRC, maskedCalcCRC, crc8Frame,
+					packetMillis);
+			if(dump != null) {
+				writeToFile(dump);
 			}
-			
+			resyncInPayload();
+			return;
 		}
-		else {
-			logStr = "FAILED. ";
+		
+		int bits = MAX_RESOLUTION_BITS - ((payloadBuffer[0] & FRAME_RESOLUTION_MASK) >> FRAME_RESOLUTION_SHIFT);
+		if(bits != resolutionBits) {
+			Log.d(TAG,"probe resolution now " + bits + " bits");
+			resolutionBits = bits;
 		}
+		// the bits below the resolution are undefined on the DS18B20
+		int rawMask = TempDecodeTable.rawMask(bits);
 		
-		logStr += str;
-		Log.d(TAG,logStr);
-		Log.d(TAG,strBuff.toString());
-		writeToFile(logStr);
-		writeToFile(strBuff.toString());
+		// the samples of a bulk data frame fill the bytes a tick would be in
+		boolean hasTick = (payloadBuffer[0] & FRAME_HAS_TICK) != 0 && !(msgType == MT_BULK_TRANSFER
+				&& (payloadBuffer[BulkTransferAssembler.RECORD_TYPE_INDEX] & 0xff) == BulkTransferAssembler.BULK_DATA);
+		// every reading time of the frame is frameMillis, or an age before it
+		long frameMillis = packetMillis;
+		if(hasTick) {
+			int rawTick = payloadView.getInt(TICK_INDEX);
+			frameMillis = arrivalKnown ? boardClock.observe(rawTick, packetMillis) : boardClock.map(rawTick, packetMillis);
+		}
+		
+		int before = samples.size();
+		if(msgType == MT_SINGLE_READING || msgType == MT_MULTI_READING || msgType == MT_MULTI_PROBE) {
+			// bulk transfers number their frames on their own
+			int order = sequence.accept(seqNo);
+			if(order == SequenceTracker.DUPLICATE) {
+				if(diagnostics.isDebugEnabled()) {
+					Log.d(TAG,"duplicate frame " + seqNo + " dropped");
+				}
+				return;
+			}
+			outOfOrder |= order == SequenceTracker.RECOVERED;
+			multiProbeBoard = msgType == MT_MULTI_PROBE;
+		}
+		switch(msgType) {
+		case MT_SINGLE_READING:
+			int raw = (payloadBuffer[4] & 0xff) << 8 | (payloadBuffer[3] & 0xff);
+			addTempSample(raw & rawMask, frameMillis);
+			break;
+		case MT_BULK_TRANSFER:
+			//12 bytes of filename, START,timestamp,data, END
+			int count = bulkTransfer.processFrame(payloadBuffer, seqNo, frameMillis, frameRaw, frameTimes);
+			addTempSamples(maskRaw(count, rawMask));
+			outOfOrder |= bulkTransfer.wasLate();
+			break;
+		case MT_MULTI_READING:
+			addTempSamples(maskRaw(decodeMultiReading(frameMillis, hasTick), rawMask));
+			break;
+		case MT_MULTI_PROBE:
+			int probes = maskRaw(decodeMultiProbe(frameMillis), rawMask);
+			samples.addAll(frameRaw, frameTimes, frameProbes, probes);
+			break;
+		case MT_RESENT_READINGS:
+			addTempSamples(maskRaw(keepMissing(seqNo, decodeMultiReading(frameMillis, hasTick)), rawMask));
+			outOfOrder = true;
+			break;
+		default: 
+			diagnostics.frameUnknownType(msgType, seqNo);
+			return;
+		}
+		diagnostics.frameOk(samples.size() - before);
 	}
 	
-	Bundle getTempSample(byte high, byte low) {
-
-		int msByte, lsByte;
-		char signchr = '+';
-
-		msByte = (high & 0xff); 	// mask off sign bit and															 
-									// prevent sign bit extension due to promotion			
-		lsByte = (low & 0xff);
-
-		int concat = ((msByte << 8) | lsByte); // 16 bit scratchpad register value
-		
-		concat = concat & 0xffff;
-		if ((concat & SIGNBITMASK) == SIGNBITMASK) {
-			// negative temp
-			concat = ~concat + 1;// (concat ^ 0xffff) + 1;
-			signchr = '-';
+	/**
+	 * A frame that fails its check was often cut short by lost bytes, so the
+	 * next frame's sync run is already inside payloadBuffer. Continues from
+	 * the first sync run after the bad frame's msg type byte, as if those
+	 * bytes had just arrived, instead of dropping the next frame too.
+	 */
+	private void resyncInPayload() {
+		int next = findSyncRun(payloadBuffer, 1, PAYLOAD_SIZE);
+		if(next < 0) {
+			// a sync run may start in the last bytes
+			int trailing = 0;
+			while(trailing < PAYLOAD_SIZE - 1 && (payloadBuffer[PAYLOAD_SIZE - 1 - trailing] & 0xff) == SYNC_BYTE) {
+				trailing++;
+			}
+			syncCounter = trailing;
+			diagnostics.rescanned(false);
+			return;
 		}
-		
-		int databits = DATABITSMASK & concat;
-
-		float temp = SENSOR_RESOLUTION * databits;
-		// System.out.printf("temp is: %f\n",temp);
+		diagnostics.rescanned(true);
+		diagnostics.syncAcquired();
+		//might have more sync bytes. ignore them
+		while(next < PAYLOAD_SIZE && (payloadBuffer[next] & 0xff) == SYNC_BYTE) {
+			next++;
+		}
+		payloadCounter = PAYLOAD_SIZE - next;
+		System.arraycopy(payloadBuffer, next, payloadBuffer, 0, payloadCounter);
+		state = payloadCounter > 0 ? ParsingState.PARSING_PAYLOAD : ParsingState.SYNCED;
+	}
+	
+	/**
+	 * Finds the first run of MAX_SYNC_BYTES sync bytes in buf[from..to).
+	 * Looks at every MAX_SYNC_BYTES-th byte only until it hits a sync byte,
+	 * since any run that long contains one of those.
+	 * 
+	 * @return the index just after the run, or -1 if there is none
+	 */
+	static int findSyncRun(byte[] buf, int from, int to) {
+		int i = from + MAX_SYNC_BYTES - 1;
+		while(i < to) {
+			if((buf[i] & 0xff) != SYNC_BYTE) {
+				i += MAX_SYNC_BYTES;
+				continue;
+			}
+			int start = i;
+			while(start > from && i - start < MAX_SYNC_BYTES - 1 && (buf[start - 1] & 0xff) == SYNC_BYTE) {
+				start--;
+			}
+			int end = start + MAX_SYNC_BYTES;
+			int j = i + 1;
+			while(j < end && j < to && (buf[j] & 0xff) == SYNC_BYTE) {
+				j++;
+			}
+			if(j == end) {
+				return end;
+			}
+			// buf[j] is not a sync byte, so no run includes it
+			i = j + MAX_SYNC_BYTES;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decodes an MT_MULTI_READING (or MT_RESENT_READINGS) payload into
+	 * frameRaw / frameTimes. Boards that batch readings send these instead
+	 * of one MT_SINGLE_READING per reading.
+	 */
+	private int decodeMultiReading(long frameMillis, boolean hasTick) {
+		int count = Math.min(payloadBuffer[MULTI_COUNT_INDEX] & 0xff,
+				hasTick ? MAX_READINGS_PER_MULTI_WITH_TICK : MAX_READINGS_PER_MULTI);
+		int src = MULTI_READINGS_INDEX;
+		for(int i = 0; i < count; i++) {
+			frameRaw[i] = (payloadBuffer[src] & 0xff) | (payloadBuffer[src + 1] & 0xff) << 8;
+			int age = (payloadBuffer[src + 2] & 0xff) | (payloadBuffer[src + 3] & 0xff) << 8;
+			frameTimes[i] = frameMillis - age;
+			src += MULTI_READING_SIZE;
+		}
+		return count;
+	}
+	
+	/**
+	 * Decodes an MT_MULTI_PROBE payload into frameRaw / frameTimes /
+	 * frameProbes in one pass. Boards with several DS18B20s on the bus send
+	 * one of these per sampling interval.
+	 */
+	private int decodeMultiProbe(long frameMillis) {
+		int count = Math.min(payloadBuffer[PROBE_COUNT_INDEX] & 0xff, MAX_PROBES_PER_FRAME);
+		int src = PROBE_READINGS_INDEX;
+		for(int i = 0; i < count; i++) {
+			frameProbes[i] = payloadView.getLong(src);
+			frameRaw[i] = (payloadBuffer[src + ROM_ID_SIZE] & 0xff) | (payloadBuffer[src + ROM_ID_SIZE + 1] & 0xff) << 8;
+			int age = (payloadBuffer[src + ROM_ID_SIZE + 2] & 0xff) | (payloadBuffer[src + ROM_ID_SIZE + 3] & 0xff) << 8;
+			frameTimes[i] = frameMillis - age;
+			src += PROBE_READING_SIZE;
+		}
+		return count;
+	}
+	
+	/**
+	 * Drops the resent readings whose seq nos already arrived, keeping the
+	 * rest in order at the start of frameRaw / frameTimes.
+	 *
+	 * @return the number of readings kept
+	 */
+	private int keepMissing(int firstSeqNo, int count) {
+		int kept = 0;
+		for(int i = 0; i < count; i++) {
+			if(sequence.acceptResent(firstSeqNo + i) != SequenceTracker.DUPLICATE) {
+				frameRaw[kept] = frameRaw[i];
+				frameTimes[kept] = frameTimes[i];
+				++kept;
+			}
+		}
+		return kept;
+	}
+	
+	/** clears the undefined bits of the first count readings in frameRaw, returns count */
+	private int maskRaw(int count, int rawMask) {
+		if(rawMask != TempDecodeTable.FULL_RESOLUTION_MASK) {
+			for(int i = 0; i < count; i++) {
+				frameRaw[i] &= rawMask;
+			}
+		}
+		return count;
+	}
+	
+	/** the probe resolution in bits reported by the last good frame */
+	int getResolutionBits() {
+		return resolutionBits;
+	}
+	
+	private void addTempSamples(int count) {
+		samples.addAll(frameRaw, frameTimes, count);
+		if(diagnostics.isDebugEnabled()) {
+			Log.d(TAG, " " + count + " temp readings decoded");
+		}
+	}
+	
+	private void addTempSample(int raw, long timeMillis) {
+		float temp = TempDecodeTable.value(raw);
+		if(diagnostics.isDebugEnabled()) {
+			Log.d(TAG, " temp raw: " + raw + " decoded: " + temp);
+		}
+		samples.add(raw, temp, timeMillis);
+	}
+	
+	Bundle getTempSample(byte high, byte low) {
+		return getTempSample(high, low, System.currentTimeMillis());
+	}
+	
+	Bundle getTempSample(byte high, byte low, long timeMillis) {
 
-		String tempstr = signchr + Float.toString(temp);
+		int msByte = (high & 0xff); // prevent sign bit extension due to promotion
+		int lsByte = (low & 0xff);
 
-		Log.d(TAG, " temp raw bytes: hi: " + msByte + " lo: " + lsByte + " decoded: " + tempstr);
+		String tempstr = TempDecodeTable.string(msByte << 8 | lsByte);
 
 		Bundle sample = new Bundle();
 
@@ -261,7 +754,7 @@ public class OWTemperatureSensor extends AbstractDriverBaseV2 {
 		sample.putInt("raw_low", lsByte);
 		
 		// Add timestamp for the sensor reading
-		String timeStamp = nanoSecondsFromMillis(new Date().getTime());
+		String timeStamp = nanoSecondsFromMillis(timeMillis);
 		// CAL: The ODK Sensors jar may have to be rebuilt to use this
 		sample.putString("timestamp", timeStamp);
 		
@@ -274,34 +767,14 @@ public class OWTemperatureSensor extends AbstractDriverBaseV2 {
 	}
 	
 	  // nanosecond-extended iso8601-style UTC date yyyy-mm-ddTHH:MM:SS.sssssssss
-	  private static final String MILLI_TO_NANO_TIMESTAMP_EXTENSION = "000000";
-
 	  public static String nanoSecondsFromMillis(Long timeMillis) {
 	    if ( timeMillis == null ) return null;
-	    // convert to a nanosecond-extended iso8601-style UTC date yyyy-mm-ddTHH:MM:SS.sssssssss
-	    Calendar c = GregorianCalendar.getInstance(new SimpleTimeZone(0,"UT"));
-	    SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-	    sf.setCalendar(c);
-	    Date d = new Date(timeMillis);
-	    String v = sf.format(d) + MILLI_TO_NANO_TIMESTAMP_EXTENSION;
-	    return v;
+	    return TimestampFormatter.format(timeMillis);
 	  }
 
 	  public static Long milliSecondsFromNanos(String timeNanos ) {
 	    if ( timeNanos == null ) return null;
 	    // convert from a nanosecond-extended iso8601-style UTC date yyyy-mm-ddTHH:MM:SS.sssssssss
-	    Calendar c = GregorianCalendar.getInstance(new SimpleTimeZone(0,"UT"));
-	    SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
-	    sf.setCalendar(c);
-	    String truncated = timeNanos.substring(0, timeNanos.length()-MILLI_TO_NANO_TIMESTAMP_EXTENSION.length());
-	    Date d;
-	    try {
-			d = sf.parse(truncated);
-	    } catch (ParseException e) {
-	      e.printStackTrace();
-	      throw new IllegalArgumentException("Unrecognized time format: " + timeNanos);
-	    }
-	    Long v = d.getTime();
-	    return v;
+	    return TimestampFormatter.parse(timeNanos);
 	  }
 }
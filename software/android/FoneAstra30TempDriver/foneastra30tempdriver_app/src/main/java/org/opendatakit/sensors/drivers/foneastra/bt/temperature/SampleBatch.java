@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import org.opendatakit.sensors.DataSeries;
+
+import android.os.Bundle;
+
+/**
+ * Decoded samples as parallel primitive arrays: the temperature in degrees
+ * Celsius, the time of the reading in nanoseconds since the epoch, the raw
+ * 16 bit scratchpad value and the ROM ID of the probe that took the reading.
+ * Sample i is (getValue(i), getTimeNanos(i), getRaw(i), getProbeId(i)).
+ *
+ * ROM IDs are stored as a long with the family code in the low byte, i.e.
+ * the 8 bytes read little endian in bus order. Readings from frames that do
+ * not name the probe have NO_PROBE_ID.
+ *
+ * The driver decodes into one reused batch per getSensorData call, and keeps
+ * the readings beyond the call's limit in a second one. With packed output
+ * the batch goes to the consumer as a single Bundle holding the arrays under
+ * the KEY_* keys; otherwise the per-sample String Bundles are only built
+ * from it at the end of the call.
+ */
+final class SampleBatch {
+
+	static final String KEY_COUNT = "sample_count";
+	static final String KEY_VALUES = "sample_values"; // float[], Celsius
+	static final String KEY_TIMESTAMPS = "sample_timestamps"; // long[], nanos since the epoch
+	static final String KEY_RAW = "sample_raw"; // int[], hi << 8 | lo
+	static final String KEY_PROBE_IDS = "sample_probe_ids"; // long[], only if any reading names its probe
+	static final String KEY_PROBE_ID = "probe_id"; // per-reading Bundles, see probeIdToString
+
+	// a DS18B20 ROM ID starts with family code 0x28, so it is never 0
+	static final long NO_PROBE_ID = 0;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	static final long NANOS_PER_MILLI = 1000L * 1000L;
+
+	private float[] values;
+	private long[] timeNanos;
+	private int[] raw;
+	private long[] probeIds;
+	private boolean hasProbeIds;
+	private int size;
+
+	SampleBatch(int initialCapacity) {
+		values = new float[initialCapacity];
+		timeNanos = new long[initialCapacity];
+		raw = new int[initialCapacity];
+		probeIds = new long[initialCapacity];
+	}
+
+	void clear() {
+		size = 0;
+		hasProbeIds = false;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void add(int rawValue, float value, long timeMillis) {
+		ensureCapacity(size + 1);
+		values[size] = value;
+		timeNanos[size] = timeMillis * NANOS_PER_MILLI;
+		raw[size] = rawValue;
+		probeIds[size] = NO_PROBE_ID;
+		++size;
+	}
+
+	/**
+	 * Adds count readings decoded in one pass, e.g. all readings of a frame.
+	 */
+	void addAll(int[] rawValues, long[] timesMillis, int count) {
+		ensureCapacity(size + count);
+		TempDecodeTable.decode(rawValues, 0, count, values, size);
+		System.arraycopy(rawValues, 0, raw, size, count);
+		for(int i = 0; i < count; i++) {
+			timeNanos[size + i] = timesMillis[i] * NANOS_PER_MILLI;
+			probeIds[size + i] = NO_PROBE_ID;
+		}
+		size += count;
+	}
+
+	/** like addAll(int[], long[], int), with the probe of each reading */
+	void addAll(int[] rawValues, long[] timesMillis, long[] probes, int count) {
+		int first = size;
+		addAll(rawValues, timesMillis, count);
+		System.arraycopy(probes, 0, probeIds, first, count);
+		hasProbeIds |= count > 0;
+	}
+
+	/** adds count samples of src from index from on */
+	void addFrom(SampleBatch src, int from, int count) {
+		ensureCapacity(size + count);
+		System.arraycopy(src.values, from, values, size, count);
+		System.arraycopy(src.timeNanos, from, timeNanos, size, count);
+		System.arraycopy(src.raw, from, raw, size, count);
+		System.arraycopy(src.probeIds, from, probeIds, size, count);
+		hasProbeIds |= src.hasProbeIds && count > 0;
+		size += count;
+	}
+
+	/** drops the first count samples */
+	void removeFirst(int count) {
+		size -= count;
+		System.arraycopy(values, count, values, 0, size);
+		System.arraycopy(timeNanos, count, timeNanos, 0, size);
+		System.arraycopy(raw, count, raw, 0, size);
+		System.arraycopy(probeIds, count, probeIds, 0, size);
+	}
+
+	/**
+	 * Puts the samples in time order, keeping the order of equal times.
+	 * Meant for a batch that is in order except for a few late readings, for
+	 * which the insertion sort is close to linear.
+	 */
+	void sortByTime() {
+		for(int i = 1; i < size; i++) {
+			long time = timeNanos[i];
+			if(timeNanos[i - 1] <= time) {
+				continue;
+			}
+			float value = values[i];
+			int rawValue = raw[i];
+			long probeId = probeIds[i];
+			int j = i;
+			while(j > 0 && timeNanos[j - 1] > time) {
+				values[j] = values[j - 1];
+				timeNanos[j] = timeNanos[j - 1];
+				raw[j] = raw[j - 1];
+				probeIds[j] = probeIds[j - 1];
+				j--;
+			}
+			values[j] = value;
+			timeNanos[j] = time;
+			raw[j] = rawValue;
+			probeIds[j] = probeId;
+		}
+	}
+
+	float getValue(int index) {
+		return values[index];
+	}
+
+	long getTimeNanos(int index) {
+		return timeNanos[index];
+	}
+
+	long getTimeMillis(int index) {
+		return timeNanos[index] / NANOS_PER_MILLI;
+	}
+
+	int getRaw(int index) {
+		return raw[index];
+	}
+
+	long getProbeId(int index) {
+		return probeIds[index];
+	}
+
+	/**
+	 * The packed form of the batch. The arrays are copied, so the batch can
+	 * be cleared and reused afterwards.
+	 */
+	Bundle toBundle(String sensorType, String msgType) {
+		Bundle packed = new Bundle();
+		packed.putInt(KEY_COUNT, size);
+		packed.putFloatArray(KEY_VALUES, copyOf(values, size));
+		packed.putLongArray(KEY_TIMESTAMPS, copyOf(timeNanos, size));
+		packed.putIntArray(KEY_RAW, copyOf(raw, size));
+		if(hasProbeIds) {
+			packed.putLongArray(KEY_PROBE_IDS, copyOf(probeIds, size));
+		}
+		packed.putString(DataSeries.SENSOR_TYPE, sensorType);
+		packed.putString(DataSeries.MSG_TYPE, msgType);
+		return packed;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity > values.length) {
+			int newCapacity = Math.max(capacity, values.length * 2);
+			values = copyOf(values, newCapacity);
+			timeNanos = copyOf(timeNanos, newCapacity);
+			raw = copyOf(raw, newCapacity);
+			probeIds = copyOf(probeIds, newCapacity);
+		}
+	}
+
+	/** the ROM ID as 16 hex digits in bus order, family code first */
+	static String probeIdToString(long probeId) {
+		char[] hex = new char[16];
+		for(int i = 0; i < 8; i++) {
+			int b = (int)(probeId >>> (8 * i)) & 0xff;
+			hex[2 * i] = HEX_DIGITS[b >>> 4];
+			hex[2 * i + 1] = HEX_DIGITS[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	// Arrays.copyOf needs API level 9
+	private static float[] copyOf(float[] src, int length) {
+		float[] dst = new float[length];
+		System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+		return dst;
+	}
+
+	private static long[] copyOf(long[] src, int length) {
+		long[] dst = new long[length];
+		System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+		return dst;
+	}
+
+	private static int[] copyOf(int[] src, int length) {
+		int[] dst = new int[length];
+		System.arraycopy(src, 0, dst, 0, Math.min(src.length, length));
+		return dst;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+/**
+ * Tracks the 16 bit sequence numbers of the board's live frames to find
+ * gaps and duplicates.
+ *
+ * A bit per sequence number in the last WINDOW records whether that frame
+ * arrived. A frame ahead of the newest one opens a gap for the numbers it
+ * skipped; a frame behind it is either a duplicate or fills a gap (a late or
+ * resent frame). Numbers that drop out of the window while still missing
+ * are counted as lost. Everything before the first frame counts as
+ * received, so only gaps since tracking started are reported.
+ *
+ * The link delivers live frames in order, so a live frame well behind the
+ * newest one is not late but from a board that restarted its counter. A
+ * live frame more than WINDOW ahead of the newest one, RESTART_BEHIND or
+ * more behind it, a live FIRST_SEQ_NO behind it, or RESTART_DUPLICATES live
+ * duplicates in a row, means the board restarted, and tracking starts over
+ * with that frame as the first new one.
+ */
+class SequenceTracker {
+
+	static final int NEW = 0;
+	static final int RECOVERED = 1;
+	static final int DUPLICATE = 2;
+
+	static final int WINDOW = 4096;
+	static final int RESTART_DUPLICATES = 3;
+	static final int RESTART_BEHIND = 256;
+	// the board numbers its first frame after a restart 1
+	static final int FIRST_SEQ_NO = 1;
+
+	private static final int SEQ_MASK = 0xffff;
+	private static final int SLOT_MASK = WINDOW - 1;
+
+	// bit set: received (or before tracking started)
+	private final long[] received = new long[WINDOW / 64];
+	private int newest = -1;
+	private int missing;
+	private int duplicatesInRow;
+
+	private long gaps;
+	private long gapFrames;
+	private long recovered;
+	private long duplicates;
+	private long lost;
+	private long restarts;
+
+	/**
+	 * A live frame.
+	 *
+	 * @return NEW, RECOVERED or DUPLICATE. Duplicates should be dropped.
+	 */
+	int accept(int seqNo) {
+		return accept(seqNo, true);
+	}
+
+	/** a reading resent on request, which never means a restart */
+	int acceptResent(int seqNo) {
+		return accept(seqNo, false);
+	}
+
+	private int accept(int seqNo, boolean live) {
+		seqNo &= SEQ_MASK;
+		if(newest < 0) {
+			restart(seqNo);
+			return NEW;
+		}
+
+		int ahead = (seqNo - newest) & SEQ_MASK;
+		if(ahead != 0 && ahead <= SEQ_MASK / 2) {
+			if(ahead > WINDOW) {
+				lost += missing + ahead - 1;
+				++restarts;
+				restart(seqNo);
+				return NEW;
+			}
+			if(ahead > 1) {
+				++gaps;
+				gapFrames += ahead - 1;
+			}
+			// the slots of the numbers skipped now hold the numbers WINDOW behind them
+			for(int i = 1; i < ahead; i++) {
+				int slot = (newest + i) & SLOT_MASK;
+				if(!isSet(slot)) {
+					++lost;
+					--missing;
+				}
+				clear(slot);
+				++missing;
+			}
+			int slot = seqNo & SLOT_MASK;
+			if(!isSet(slot)) {
+				++lost;
+				--missing;
+			}
+			set(slot);
+			newest = seqNo;
+			duplicatesInRow = 0;
+			return NEW;
+		}
+
+		int behind = (newest - seqNo) & SEQ_MASK;
+		int slot = seqNo & SLOT_MASK;
+		if(live && (behind >= RESTART_BEHIND || seqNo == FIRST_SEQ_NO)) {
+			lost += missing;
+			++restarts;
+			restart(seqNo);
+			return NEW;
+		}
+		if(behind >= WINDOW || isSet(slot)) {
+			if(live && ++duplicatesInRow >= RESTART_DUPLICATES) {
+				lost += missing;
+				++restarts;
+				restart(seqNo);
+				return NEW;
+			}
+			++duplicates;
+			return DUPLICATE;
+		}
+		set(slot);
+		--missing;
+		++recovered;
+		duplicatesInRow = 0;
+		return RECOVERED;
+	}
+
+	/**
+	 * Counts the missing numbers keep or more behind the newest one as lost
+	 * at once, for a board that can only resend its last keep frames.
+	 */
+	void expireMissing(int keep) {
+		if(missing == 0 || newest < 0) {
+			return;
+		}
+		for(int back = WINDOW - 1; back >= keep && missing > 0; back--) {
+			int slot = (newest - back) & SLOT_MASK;
+			if(!isSet(slot)) {
+				set(slot);
+				--missing;
+				++lost;
+			}
+		}
+	}
+
+	/**
+	 * Writes up to maxRanges of the missing ranges, oldest first.
+	 *
+	 * @return the number of ranges written
+	 */
+	int getMissingRanges(int[] firstSeqNos, int[] counts, int maxRanges) {
+		int ranges = 0;
+		if(missing == 0 || newest < 0) {
+			return 0;
+		}
+		int runStart = -1;
+		for(int back = WINDOW - 1; back > 0 && ranges < maxRanges; back--) {
+			int seqNo = (newest - back) & SEQ_MASK;
+			boolean gap = !isSet(seqNo & SLOT_MASK);
+			if(gap && runStart < 0) {
+				runStart = seqNo;
+			}
+			else if(!gap && runStart >= 0) {
+				firstSeqNos[ranges] = runStart;
+				counts[ranges++] = (seqNo - runStart) & SEQ_MASK;
+				runStart = -1;
+			}
+		}
+		if(runStart >= 0 && ranges < maxRanges) {
+			firstSeqNos[ranges] = runStart;
+			// the newest frame is always received
+			counts[ranges++] = (newest - runStart) & SEQ_MASK;
+		}
+		return ranges;
+	}
+
+	/** numbers in the window that have not arrived */
+	int getMissing() {
+		return missing;
+	}
+
+	long getGaps() {
+		return gaps;
+	}
+
+	long getGapFrames() {
+		return gapFrames;
+	}
+
+	long getRecovered() {
+		return recovered;
+	}
+
+	long getDuplicates() {
+		return duplicates;
+	}
+
+	long getLost() {
+		return lost;
+	}
+
+	long getRestarts() {
+		return restarts;
+	}
+
+	private void restart(int seqNo) {
+		for(int i = 0; i < received.length; i++) {
+			received[i] = -1L;
+		}
+		newest = seqNo;
+		missing = 0;
+		duplicatesInRow = 0;
+	}
+
+	private boolean isSet(int slot) {
+		return (received[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	private void set(int slot) {
+		received[slot >>> 6] |= 1L << slot;
+	}
+
+	private void clear(int slot) {
+		received[slot >>> 6] &= ~(1L << slot);
+	}
+}
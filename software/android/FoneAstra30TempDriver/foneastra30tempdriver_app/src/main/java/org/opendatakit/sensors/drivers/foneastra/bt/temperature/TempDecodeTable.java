@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+/**
+ * DS18B20 readings decoded by table lookup.
+ *
+ * The driver treats bit 11 of the 16 bit scratchpad value as the sign and
+ * the 11 bits below it as data. The low 11 bits of a two's complement
+ * negation only depend on the low 11 bits of the value, so a reading decodes
+ * to the same value as raw & 0xfff. All 4096 values and their Strings are
+ * computed once, with the arithmetic getTempSample used to do per reading.
+ *
+ * At 9 to 11 bits resolution the DS18B20 keeps the 0.0625 degree scale and
+ * leaves the low 3 to 1 bits undefined. rawMask clears them, so readings
+ * decode with the same table.
+ */
+final class TempDecodeTable {
+
+	static final float SENSOR_RESOLUTION = 0.0625F; // 12 bit precision ds18b20 sensor
+	static final int DATABITSMASK = 0x7FF; // 11 bits of data excluding the sign bit
+	static final int SIGNBITMASK = 0x800; // 12th bit is the sign bit
+
+	static final int SIZE = 1 << 12;
+	private static final int INDEX_MASK = SIZE - 1;
+	static final int FULL_RESOLUTION_MASK = 0xffff;
+
+	private static final float[] VALUES = new float[SIZE];
+	// sign char followed by Float.toString of the magnitude, e.g. "+21.0625", "-0.5"
+	private static final String[] STRINGS = new String[SIZE];
+
+	static {
+		for(int i = 0; i < SIZE; i++) {
+			int concat = i;
+			char signchr = '+';
+			if((concat & SIGNBITMASK) == SIGNBITMASK) {
+				// negative temp
+				concat = ~concat + 1;
+				signchr = '-';
+			}
+			float temp = SENSOR_RESOLUTION * (DATABITSMASK & concat);
+			VALUES[i] = signchr == '-' ? -temp : temp;
+			STRINGS[i] = signchr + Float.toString(temp);
+		}
+	}
+
+	private TempDecodeTable() {
+	}
+
+	/** the mask that clears the undefined bits of a reading at bits resolution, 9 to 12 */
+	static int rawMask(int bits) {
+		return FULL_RESOLUTION_MASK & ~((1 << (12 - bits)) - 1);
+	}
+
+	/**
+	 * @param raw the scratchpad value, hi << 8 | lo. Only the low 12 bits are used.
+	 * @return the temperature in degrees Celsius
+	 */
+	static float value(int raw) {
+		return VALUES[raw & INDEX_MASK];
+	}
+
+	/** the reading as getTempSample has always reported it */
+	static String string(int raw) {
+		return STRINGS[raw & INDEX_MASK];
+	}
+
+	/** decodes count scratchpad values starting at src[srcOff] */
+	static void decode(int[] src, int srcOff, int count, float[] dst, int dstOff) {
+		final float[] values = VALUES;
+		for(int i = 0; i < count; i++) {
+			dst[dstOff + i] = values[src[srcOff + i] & INDEX_MASK];
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.SimpleTimeZone;
+
+/**
+ * Thread-safe encoder/decoder for the nanosecond-extended iso8601-style UTC
+ * timestamps (yyyy-MM-ddTHH:mm:ss.SSS000000) attached to every sample.
+ *
+ * Dates between the Gregorian cutover and year 9999 are converted with
+ * integer arithmetic into a per-thread char buffer. Anything else falls back
+ * to a cached per-thread SimpleDateFormat, so the output is identical to
+ * formatting with SimpleDateFormat in all cases.
+ */
+final class TimestampFormatter {
+
+	static final String MILLI_TO_NANO_TIMESTAMP_EXTENSION = "000000";
+
+	private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+	private static final int MILLIS_LENGTH = 23; // length of PATTERN output
+	static final int LENGTH = MILLIS_LENGTH + MILLI_TO_NANO_TIMESTAMP_EXTENSION.length();
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	// 1582-10-15T00:00:00.000Z. GregorianCalendar uses julian dates before that
+	private static final long GREGORIAN_CUTOVER_MILLIS = -12219292800000L;
+	// 10000-01-01T00:00:00.000Z
+	private static final long MAX_FAST_MILLIS = 253402300800000L;
+	// days between 0000-03-01 and 1970-01-01
+	private static final int EPOCH_SHIFT_DAYS = 719468;
+	private static final int DAYS_PER_ERA = 146097;
+
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+		@Override
+		protected char[] initialValue() {
+			char[] buf = new char[LENGTH];
+			for(int i = MILLIS_LENGTH; i < LENGTH; i++) {
+				buf[i] = '0';
+			}
+			return buf;
+		}
+	};
+
+	private static final ThreadLocal<SimpleDateFormat> formats = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat sf = new SimpleDateFormat(PATTERN, Locale.US);
+			sf.setCalendar(new GregorianCalendar(new SimpleTimeZone(0,"UT"), Locale.US));
+			return sf;
+		}
+	};
+
+	private TimestampFormatter() {
+	}
+
+	static String format(long timeMillis) {
+		if(timeMillis < GREGORIAN_CUTOVER_MILLIS || timeMillis >= MAX_FAST_MILLIS) {
+			return formats.get().format(new Date(timeMillis)) + MILLI_TO_NANO_TIMESTAMP_EXTENSION;
+		}
+		char[] buf = buffers.get();
+		encode(timeMillis, buf, 0);
+		return new String(buf, 0, LENGTH);
+	}
+
+	/**
+	 * Writes the LENGTH characters of the timestamp for timeMillis into dst.
+	 * Only valid between the Gregorian cutover and the end of year 9999.
+	 */
+	static void encode(long timeMillis, char[] dst, int off) {
+		long days = timeMillis / MILLIS_PER_DAY;
+		int millisOfDay = (int)(timeMillis - days * MILLIS_PER_DAY);
+		if(millisOfDay < 0) {
+			millisOfDay += MILLIS_PER_DAY;
+			--days;
+		}
+
+		// civil-from-days over 400 year eras starting on March 1st
+		long z = days + EPOCH_SHIFT_DAYS;
+		long era = (z >= 0 ? z : z - (DAYS_PER_ERA - 1)) / DAYS_PER_ERA;
+		int dayOfEra = (int)(z - era * DAYS_PER_ERA);
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = mp < 10 ? mp + 3 : mp - 9;
+		int year = (int)(yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+		int secondsOfDay = millisOfDay / 1000;
+		int millis = millisOfDay - secondsOfDay * 1000;
+		int hour = secondsOfDay / 3600;
+		int minute = (secondsOfDay / 60) % 60;
+		int second = secondsOfDay % 60;
+
+		put4(dst, off, year);
+		dst[off + 4] = '-';
+		put2(dst, off + 5, month);
+		dst[off + 7] = '-';
+		put2(dst, off + 8, day);
+		dst[off + 10] = 'T';
+		put2(dst, off + 11, hour);
+		dst[off + 13] = ':';
+		put2(dst, off + 14, minute);
+		dst[off + 16] = ':';
+		put2(dst, off + 17, second);
+		dst[off + 19] = '.';
+		dst[off + 20] = (char)('0' + millis / 100);
+		dst[off + 21] = (char)('0' + (millis / 10) % 10);
+		dst[off + 22] = (char)('0' + millis % 10);
+		for(int i = MILLIS_LENGTH; i < LENGTH; i++) {
+			dst[off + i] = '0';
+		}
+	}
+
+	static long parse(String timeNanos) {
+		String truncated = timeNanos.substring(0, timeNanos.length()-MILLI_TO_NANO_TIMESTAMP_EXTENSION.length());
+		long fast = parseFixedWidth(truncated);
+		if(fast != Long.MIN_VALUE) {
+			return fast;
+		}
+		try {
+			return formats.get().parse(truncated).getTime();
+		} catch (ParseException e) {
+			e.printStackTrace();
+			throw new IllegalArgumentException("Unrecognized time format: " + timeNanos);
+		}
+	}
+
+	/**
+	 * Parses exactly PATTERN with in-range fields. Returns Long.MIN_VALUE for
+	 * anything else, which is left to the lenient SimpleDateFormat.
+	 */
+	private static long parseFixedWidth(String s) {
+		if(s.length() != MILLIS_LENGTH || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+				|| s.charAt(13) != ':' || s.charAt(16) != ':' || s.charAt(19) != '.') {
+			return Long.MIN_VALUE;
+		}
+		int year = digits(s, 0, 4);
+		int month = digits(s, 5, 2);
+		int day = digits(s, 8, 2);
+		int hour = digits(s, 11, 2);
+		int minute = digits(s, 14, 2);
+		int second = digits(s, 17, 2);
+		int millis = digits(s, 20, 3);
+		if(year < 1583 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+				|| hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59
+				|| millis < 0) {
+			return Long.MIN_VALUE;
+		}
+
+		// days-from-civil, the inverse of the computation in encode
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = (long)era * DAYS_PER_ERA + dayOfEra - EPOCH_SHIFT_DAYS;
+
+		return days * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		switch(month) {
+		case 2:
+			boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+			return leap ? 29 : 28;
+		case 4: case 6: case 9: case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	// returns -1 if any of the characters is not an ascii digit
+	private static int digits(String s, int index, int count) {
+		int value = 0;
+		for(int i = index; i < index + count; i++) {
+			int d = s.charAt(i) - '0';
+			if(d < 0 || d > 9) {
+				return -1;
+			}
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	private static void put2(char[] dst, int off, int value) {
+		dst[off] = (char)('0' + value / 10);
+		dst[off + 1] = (char)('0' + value % 10);
+	}
+
+	private static void put4(char[] dst, int off, int value) {
+		dst[off] = (char)('0' + value / 1000);
+		dst[off + 1] = (char)('0' + (value / 100) % 10);
+		dst[off + 2] = (char)('0' + (value / 10) % 10);
+		dst[off + 3] = (char)('0' + value % 10);
+	}
+}
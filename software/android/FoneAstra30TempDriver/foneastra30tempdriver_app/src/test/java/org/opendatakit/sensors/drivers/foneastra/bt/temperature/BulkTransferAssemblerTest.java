@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BulkTransferAssemblerTest {
+
+	private static final int START_SEQ_NO = 500;
+	private static final int FRAMES = 2 * BulkTransferAssembler.REORDER_WINDOW;
+
+	private final BulkTransferAssembler assembler = new BulkTransferAssembler();
+	private final int[] raw = new int[BulkTransferAssembler.MAX_SAMPLES_PER_FRAME];
+	private final long[] times = new long[BulkTransferAssembler.MAX_SAMPLES_PER_FRAME];
+
+	private static byte[] payload(int recordType) {
+		byte[] payload = new byte[256];
+		payload[BulkTransferAssembler.RECORD_TYPE_INDEX] = (byte) recordType;
+		return payload;
+	}
+
+	private void start() {
+		byte[] payload = payload(BulkTransferAssembler.BULK_START);
+		payload[BulkTransferAssembler.START_INTERVAL_INDEX] = 1;
+		long count = (long) FRAMES * BulkTransferAssembler.MAX_SAMPLES_PER_FRAME;
+		payload[BulkTransferAssembler.START_COUNT_INDEX] = (byte) count;
+		payload[BulkTransferAssembler.START_COUNT_INDEX + 1] = (byte) (count >> 8);
+		assembler.processFrame(payload, START_SEQ_NO, 0, raw, times);
+	}
+
+	/** @return the number of samples decoded from data frame frameIndex */
+	private int data(int frameIndex) {
+		byte[] payload = payload(BulkTransferAssembler.BULK_DATA);
+		payload[BulkTransferAssembler.DATA_COUNT_INDEX] = (byte) BulkTransferAssembler.MAX_SAMPLES_PER_FRAME;
+		return assembler.processFrame(payload, START_SEQ_NO + frameIndex, 0, raw, times);
+	}
+
+	@Test
+	public void decodesALateFrameOnceInItsPlace() {
+		start();
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(1));
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(3));
+		assertFalse(assembler.wasLate());
+		assertEquals(1, assembler.getMissingFrames());
+
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(2));
+		assertTrue(assembler.wasLate());
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME * 1000L, times[0]);
+		assertEquals(0, assembler.getMissingFrames());
+
+		assertEquals(0, data(2));
+		assertEquals(0, data(3));
+	}
+
+	@Test
+	public void dropsFramesOutsideTheTransfer() {
+		start();
+		assertEquals(0, data(0));
+		assertEquals(0, data(FRAMES + 1));
+		assertEquals(0, data(-1));
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(FRAMES));
+		assertEquals(FRAMES - 1, assembler.getMissingFrames());
+	}
+
+	@Test
+	public void dropsFramesBehindTheWindow() {
+		start();
+		int newest = BulkTransferAssembler.REORDER_WINDOW + 1;
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(newest));
+		assertEquals(0, data(newest - BulkTransferAssembler.REORDER_WINDOW));
+		assertEquals(BulkTransferAssembler.MAX_SAMPLES_PER_FRAME, data(newest - BulkTransferAssembler.REORDER_WINDOW + 1));
+		assertEquals(newest - 2, assembler.getMissingFrames());
+	}
+}
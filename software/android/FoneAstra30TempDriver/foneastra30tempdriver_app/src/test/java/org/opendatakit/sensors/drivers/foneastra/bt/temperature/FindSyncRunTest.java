@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FindSyncRunTest {
+
+	private static final byte SYNC = (byte) 0xaa;
+	private static final int RUN = 4; // OWTemperatureSensor.MAX_SYNC_BYTES
+
+	/** the end of the first run of RUN sync bytes in buf[from..to), looking at every start */
+	private static int bruteForce(byte[] buf, int from, int to) {
+		for(int start = from; start + RUN <= to; start++) {
+			int j = start;
+			while(j < start + RUN && buf[j] == SYNC) {
+				j++;
+			}
+			if(j == start + RUN) {
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	private static void checkAllRanges(byte[] buf) {
+		for(int from = 0; from <= buf.length; from++) {
+			for(int to = from; to <= buf.length; to++) {
+				assertEquals("from " + from + " to " + to, bruteForce(buf, from, to),
+						OWTemperatureSensor.findSyncRun(buf, from, to));
+			}
+		}
+	}
+
+	@Test
+	public void matchesBruteForceForEveryPatternUpTo12Bytes() {
+		for(int length = 0; length <= 12; length++) {
+			byte[] buf = new byte[length];
+			for(int pattern = 0; pattern < 1 << length; pattern++) {
+				for(int i = 0; i < length; i++) {
+					buf[i] = (pattern & (1 << i)) != 0 ? SYNC : (byte) 0x55;
+				}
+				checkAllRanges(buf);
+			}
+		}
+	}
+
+	@Test
+	public void matchesBruteForceOnRandomPayloads() {
+		Random random = new Random(3);
+		byte[] buf = new byte[256];
+		for(int n = 0; n < 2000; n++) {
+			// mostly sync bytes, so there are runs of every length
+			for(int i = 0; i < buf.length; i++) {
+				buf[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256) : SYNC;
+			}
+			int from = random.nextInt(buf.length + 1);
+			int to = from + random.nextInt(buf.length - from + 1);
+			assertEquals("from " + from + " to " + to, bruteForce(buf, from, to),
+					OWTemperatureSensor.findSyncRun(buf, from, to));
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SequenceTrackerTest {
+
+	private static void acceptAll(SequenceTracker tracker, int first, int last) {
+		for(int seqNo = first; seqNo <= last; seqNo++) {
+			assertEquals("seq " + seqNo, SequenceTracker.NEW, tracker.accept(seqNo));
+		}
+	}
+
+	@Test
+	public void keepsEveryFrameOfARebootedBoard() {
+		SequenceTracker tracker = new SequenceTracker();
+		acceptAll(tracker, 1000, 1010);
+		acceptAll(tracker, 1, 4);
+		assertEquals(1, tracker.getRestarts());
+		assertEquals(0, tracker.getDuplicates());
+		assertEquals(0, tracker.getMissing());
+	}
+
+	@Test
+	public void keepsEveryFrameOfARebootWhoseFirstFramesWereLost() {
+		SequenceTracker tracker = new SequenceTracker();
+		acceptAll(tracker, 1000, 1010);
+		acceptAll(tracker, 5, 8);
+		assertEquals(1, tracker.getRestarts());
+	}
+
+	@Test
+	public void keepsEveryFrameOfARebootBeforeTheOldCounterGotFar() {
+		SequenceTracker tracker = new SequenceTracker();
+		acceptAll(tracker, 1, 10);
+		acceptAll(tracker, 1, 12);
+		assertEquals(1, tracker.getRestarts());
+	}
+
+	@Test
+	public void dropsDuplicatesUntilTheyLookLikeARestart() {
+		SequenceTracker tracker = new SequenceTracker();
+		acceptAll(tracker, 100, 110);
+		assertEquals(SequenceTracker.DUPLICATE, tracker.accept(108));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.accept(109));
+		// the third in a row restarts, and is kept
+		assertEquals(SequenceTracker.NEW, tracker.accept(110));
+		assertEquals(SequenceTracker.NEW, tracker.accept(111));
+		assertEquals(2, tracker.getDuplicates());
+		assertEquals(1, tracker.getRestarts());
+	}
+
+	@Test
+	public void fillsGapsWithLateAndResentFrames() {
+		SequenceTracker tracker = new SequenceTracker();
+		acceptAll(tracker, 100, 101);
+		assertEquals(SequenceTracker.NEW, tracker.accept(105));
+		assertEquals(3, tracker.getMissing());
+		assertEquals(SequenceTracker.RECOVERED, tracker.accept(103));
+		assertEquals(SequenceTracker.RECOVERED, tracker.acceptResent(102));
+		assertEquals(SequenceTracker.DUPLICATE, tracker.acceptResent(102));
+		assertEquals(1, tracker.getMissing());
+		assertEquals(0, tracker.getRestarts());
+	}
+
+	@Test
+	public void expiresWhatTheBoardCannotResend() {
+		SequenceTracker tracker = new SequenceTracker();
+		tracker.accept(100);
+		tracker.accept(1100);
+		assertEquals(999, tracker.getMissing());
+		tracker.expireMissing(48);
+		assertEquals(47, tracker.getMissing());
+		assertEquals(952, tracker.getLost());
+
+		int[] first = new int[4];
+		int[] counts = new int[4];
+		assertEquals(1, tracker.getMissingRanges(first, counts, 4));
+		assertEquals(1100 - 47, first[0]);
+		assertEquals(47, counts[0]);
+
+		tracker.expireMissing(0);
+		assertEquals(0, tracker.getMissing());
+		assertEquals(999, tracker.getLost());
+		assertEquals(0, tracker.getMissingRanges(first, counts, 4));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TempDecodeTableTest {
+
+	/** the decoding of getTempSample before the table, for the hi and lo scratchpad bytes */
+	private static String legacyTempSample(byte high, byte low) {
+		int msByte = (high & 0xff);
+		int lsByte = (low & 0xff);
+		char signchr = '+';
+
+		int concat = ((msByte << 8) | lsByte);
+		concat = concat & 0xffff;
+		if ((concat & 0x800) == 0x800) {
+			concat = ~concat + 1;
+			signchr = '-';
+		}
+		int databits = 0x7FF & concat;
+		float temp = 0.0625F * databits;
+		return signchr + Float.toString(temp);
+	}
+
+	@Test
+	public void matchesLegacyDecodingForAllRawValues() {
+		for(int raw = 0; raw <= 0xffff; raw++) {
+			String expected = legacyTempSample((byte) (raw >> 8), (byte) raw);
+			assertEquals("raw " + raw, expected, TempDecodeTable.string(raw));
+			assertEquals("raw " + raw, Float.parseFloat(expected), TempDecodeTable.value(raw), 0.0f);
+		}
+	}
+
+	@Test
+	public void decodeMatchesValue() {
+		int[] raw = new int[0x10000];
+		for(int i = 0; i < raw.length; i++) {
+			raw[i] = i;
+		}
+		float[] values = new float[raw.length + 1];
+		TempDecodeTable.decode(raw, 0, raw.length, values, 1);
+		for(int i = 0; i < raw.length; i++) {
+			assertEquals("raw " + i, TempDecodeTable.value(i), values[i + 1], 0.0f);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.SimpleTimeZone;
+
+import org.junit.Test;
+
+public class TimestampFormatterTest {
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	// 1582-10-15T00:00:00.000Z and 10000-01-01T00:00:00.000Z, the ends of the integer path
+	private static final long GREGORIAN_CUTOVER_MILLIS = -12219292800000L;
+	private static final long MAX_FAST_MILLIS = 253402300800000L;
+	// 2400-03-01T00:00:00.000Z
+	private static final long ERAS_END_MILLIS = 13574649600000L;
+
+	private static final long[] EDGES = {
+		0, -1, 1, 999, 1000, MILLIS_PER_DAY - 1, MILLIS_PER_DAY, -MILLIS_PER_DAY, -MILLIS_PER_DAY - 1,
+		GREGORIAN_CUTOVER_MILLIS - MILLIS_PER_DAY, GREGORIAN_CUTOVER_MILLIS - 1, GREGORIAN_CUTOVER_MILLIS,
+		GREGORIAN_CUTOVER_MILLIS + 1, MAX_FAST_MILLIS - 1, MAX_FAST_MILLIS, MAX_FAST_MILLIS + MILLIS_PER_DAY,
+		951782400000L, // 2000-02-29
+		-2203891200000L, // 1900-03-01
+		4107542400000L, // 2100-03-01
+		1394150400123L, // 2014-03-07
+	};
+
+	/** the formatting of nanoSecondsFromMillis before TimestampFormatter */
+	private static SimpleDateFormat legacyFormat() {
+		SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+		sf.setCalendar(GregorianCalendar.getInstance(new SimpleTimeZone(0,"UT"), Locale.US));
+		return sf;
+	}
+
+	private static void check(SimpleDateFormat legacy, long timeMillis) throws ParseException {
+		String expected = legacy.format(new Date(timeMillis)) + TimestampFormatter.MILLI_TO_NANO_TIMESTAMP_EXTENSION;
+		String formatted = TimestampFormatter.format(timeMillis);
+		assertEquals("format " + timeMillis, expected, formatted);
+		long parsed = legacy.parse(expected.substring(0, expected.length()
+				- TimestampFormatter.MILLI_TO_NANO_TIMESTAMP_EXTENSION.length())).getTime();
+		assertEquals("parse " + formatted, parsed, TimestampFormatter.parse(formatted));
+	}
+
+	@Test
+	public void matchesSimpleDateFormatAtEdges() throws ParseException {
+		SimpleDateFormat legacy = legacyFormat();
+		for(long edge : EDGES) {
+			check(legacy, edge);
+		}
+	}
+
+	@Test
+	public void matchesSimpleDateFormatOnEveryDay() throws ParseException {
+		SimpleDateFormat legacy = legacyFormat();
+		// every day from the cutover to 2400, at a varying time of day
+		Random random = new Random(1);
+		for(long day = GREGORIAN_CUTOVER_MILLIS; day < ERAS_END_MILLIS; day += MILLIS_PER_DAY) {
+			check(legacy, day + (long) (random.nextDouble() * MILLIS_PER_DAY));
+		}
+	}
+
+	@Test
+	public void matchesSimpleDateFormatAtRandom() throws ParseException {
+		SimpleDateFormat legacy = legacyFormat();
+		Random random = new Random(2);
+		long span = MAX_FAST_MILLIS - GREGORIAN_CUTOVER_MILLIS;
+		for(int i = 0; i < 200000; i++) {
+			// a little outside the integer path too, for the fallback
+			check(legacy, GREGORIAN_CUTOVER_MILLIS - span / 100 + (long) (random.nextDouble() * span * 1.02));
+		}
+	}
+
+	@Test
+	public void parsesWhatSimpleDateFormatParses() throws ParseException {
+		SimpleDateFormat legacy = legacyFormat();
+		// not in the fixed width pattern or out of range, left to the lenient SimpleDateFormat
+		String[] lenient = { "2014-02-30T10:00:00.000", "2014-13-01T10:00:00.000", "2014-01-01T24:00:00.000",
+				"1500-01-01T00:00:00.000", "2014-1-01T10:00:00.000" };
+		for(String timestamp : lenient) {
+			assertEquals(timestamp, legacy.parse(timestamp).getTime(),
+					TimestampFormatter.parse(timestamp + TimestampFormatter.MILLI_TO_NANO_TIMESTAMP_EXTENSION));
+		}
+	}
+}
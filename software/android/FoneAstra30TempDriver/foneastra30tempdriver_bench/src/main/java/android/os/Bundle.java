@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import java.util.HashMap;
+
+/**
+ * Plain-JVM stand-in for android.os.Bundle, backed by a HashMap like the
+ * real one. Only the accessors used by the driver are provided.
+ */
+public class Bundle {
+
+	private final HashMap<String, Object> map = new HashMap<String, Object>();
+
+	public boolean containsKey(String key) {
+		return map.containsKey(key);
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	public void putString(String key, String value) {
+		map.put(key, value);
+	}
+
+	public String getString(String key) {
+		Object o = map.get(key);
+		return o instanceof String ? (String) o : null;
+	}
+
+	public void putInt(String key, int value) {
+		map.put(key, value);
+	}
+
+	public int getInt(String key) {
+		return getInt(key, 0);
+	}
+
+	public int getInt(String key, int defaultValue) {
+		Object o = map.get(key);
+		return o instanceof Integer ? (Integer) o : defaultValue;
+	}
+
+	public void putLong(String key, long value) {
+		map.put(key, value);
+	}
+
+	public long getLong(String key) {
+		return getLong(key, 0L);
+	}
+
+	public long getLong(String key, long defaultValue) {
+		Object o = map.get(key);
+		return o instanceof Long ? (Long) o : defaultValue;
+	}
+
+	public void putFloat(String key, float value) {
+		map.put(key, value);
+	}
+
+	public float getFloat(String key) {
+		Object o = map.get(key);
+		return o instanceof Float ? (Float) o : 0.0f;
+	}
+
+	public void putBoolean(String key, boolean value) {
+		map.put(key, value);
+	}
+
+	public boolean getBoolean(String key) {
+		return getBoolean(key, false);
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Object o = map.get(key);
+		return o instanceof Boolean ? (Boolean) o : defaultValue;
+	}
+
+	public void putByteArray(String key, byte[] value) {
+		map.put(key, value);
+	}
+
+	public byte[] getByteArray(String key) {
+		Object o = map.get(key);
+		return o instanceof byte[] ? (byte[]) o : null;
+	}
+
+	public void putIntArray(String key, int[] value) {
+		map.put(key, value);
+	}
+
+	public int[] getIntArray(String key) {
+		Object o = map.get(key);
+		return o instanceof int[] ? (int[]) o : null;
+	}
+
+	public void putLongArray(String key, long[] value) {
+		map.put(key, value);
+	}
+
+	public long[] getLongArray(String key) {
+		Object o = map.get(key);
+		return o instanceof long[] ? (long[]) o : null;
+	}
+
+	public void putFloatArray(String key, float[] value) {
+		map.put(key, value);
+	}
+
+	public float[] getFloatArray(String key) {
+		Object o = map.get(key);
+		return o instanceof float[] ? (float[]) o : null;
+	}
+
+	public void putStringArray(String key, String[] value) {
+		map.put(key, value);
+	}
+
+	public String[] getStringArray(String key) {
+		Object o = map.get(key);
+		return o instanceof String[] ? (String[]) o : null;
+	}
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors;
+
+/**
+ * Plain-JVM stand-in for the ODK Sensors DataSeries keys.
+ */
+public class DataSeries {
+
+	public static final String SAMPLE = "sample";
+	public static final String SENSOR_TYPE = "sensor-type";
+	public static final String MSG_TYPE = "message-type";
+}
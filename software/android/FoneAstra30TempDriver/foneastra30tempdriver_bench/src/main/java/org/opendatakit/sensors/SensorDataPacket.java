@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors;
+
+/**
+ * Plain-JVM stand-in for the ODK Sensors SensorDataPacket.
+ */
+public class SensorDataPacket {
+
+	private final byte[] payload;
+	private final long time;
+
+	public SensorDataPacket(byte[] payload, long time) {
+		this.payload = payload;
+		this.time = time;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	public long getTime() {
+		return time;
+	}
+}
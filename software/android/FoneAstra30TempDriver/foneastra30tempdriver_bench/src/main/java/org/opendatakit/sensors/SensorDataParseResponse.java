@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors;
+
+import java.util.List;
+
+import android.os.Bundle;
+
+/**
+ * Plain-JVM stand-in for the ODK Sensors SensorDataParseResponse.
+ */
+public class SensorDataParseResponse {
+
+	private final List<Bundle> sensorData;
+	private final byte[] remainingData;
+
+	public SensorDataParseResponse(List<Bundle> sensorData, byte[] remainingData) {
+		this.sensorData = sensorData;
+		this.remainingData = remainingData;
+	}
+
+	public List<Bundle> getSensorData() {
+		return sensorData;
+	}
+
+	public byte[] getRemainingData() {
+		return remainingData;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers;
+
+import java.util.List;
+
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorDataParseResponse;
+
+import android.os.Bundle;
+
+/**
+ * Plain-JVM stand-in for the ODK Sensors V2 driver base class.
+ */
+public abstract class AbstractDriverBaseV2 {
+
+	public byte[] configureCmd(String setting, Bundle config) {
+		return null;
+	}
+
+	public abstract SensorDataParseResponse getSensorData(long maxNumReadings, List<SensorDataPacket> rawData,
+			byte[] remainingData);
+
+	public byte[] sendDataToSensor(Bundle dataToEmit) {
+		return null;
+	}
+
+	public void shutdown() {
+	}
+}
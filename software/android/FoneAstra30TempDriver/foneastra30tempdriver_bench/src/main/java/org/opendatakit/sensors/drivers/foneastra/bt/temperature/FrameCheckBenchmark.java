@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-frame cost of the frame checks over the 255 checked payload bytes,
+ * next to the byte-at-a-time loops they replace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCheckBenchmark {
+
+	private static final int CHECKED_SIZE = FrameStreams.PAYLOAD_SIZE - 1;
+
+	private final byte[] payload = new byte[FrameStreams.PAYLOAD_SIZE];
+	private final ByteBuffer view = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+	private final int[] crcTable = new int[256];
+
+	@Setup
+	public void setup() {
+		new Random(42).nextBytes(payload);
+		for(int x = 0; x < 256; x++) {
+			int crc = x;
+			for(int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8c : crc >>> 1;
+			}
+			crcTable[x] = crc;
+		}
+	}
+
+	@Benchmark
+	public int xorBytes() {
+		byte calcCRC = 0;
+		for(int i = 0; i < CHECKED_SIZE; i++) {
+			calcCRC = (byte) (calcCRC ^ payload[i]);
+		}
+		return calcCRC & 0xff;
+	}
+
+	@Benchmark
+	public int xor() {
+		return FrameCheck.xor(view, 0, CHECKED_SIZE);
+	}
+
+	@Benchmark
+	public int crc8Bytes() {
+		int crc = 0;
+		for(int i = 0; i < CHECKED_SIZE; i++) {
+			crc = crcTable[(crc ^ payload[i]) & 0xff];
+		}
+		return crc;
+	}
+
+	@Benchmark
+	public int crc8() {
+		return FrameCheck.crc8(view, 0, CHECKED_SIZE);
+	}
+}
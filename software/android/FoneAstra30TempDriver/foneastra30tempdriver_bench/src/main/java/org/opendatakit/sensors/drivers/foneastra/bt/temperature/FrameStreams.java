@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opendatakit.sensors.SensorDataPacket;
+
+/**
+ * Builds synthetic byte streams the way FoneAstra30TempSketch frames them:
+ * NO_OF_SYNC_BYTES sync bytes followed by a PAYLOAD_SIZE payload whose last
+ * byte is the xor or CRC-8 of the others.
+ */
+class FrameStreams {
+
+	static final int SYNC_BYTE = 0xaa;
+	static final int NO_OF_SYNC_BYTES = 10; // what the board sends
+	static final int PAYLOAD_SIZE = 256;
+	static final int FRAME_SIZE = NO_OF_SYNC_BYTES + PAYLOAD_SIZE;
+
+	static final int MT_SINGLE_READING = 1;
+	static final int MT_BULK_TRANSFER = 2;
+	static final int MT_MULTI_READING = 7;
+	static final int MT_MULTI_PROBE = 8;
+	static final int MT_RESENT_READINGS = 10;
+	static final int DS18B20_FAMILY_CODE = 0x28;
+	static final int FRAME_CHECK_CRC8 = 0x80;
+	static final int FRAME_HAS_TICK = 0x40;
+	static final int TICK_INDEX = PAYLOAD_SIZE - 1 - 4;
+	static final int FRAME_RESOLUTION_SHIFT = 4;
+
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final Random random;
+	private int seqNo = 0;
+	private int frames = 0;
+	private boolean crc8 = false;
+	private long tick = -1;
+	private int resolutionBits = 12;
+
+	FrameStreams(long seed) {
+		random = new Random(seed);
+	}
+
+	/** check frames with CRC-8/MAXIM instead of xor from now on */
+	FrameStreams useCrc8(boolean crc8) {
+		this.crc8 = crc8;
+		return this;
+	}
+
+	/**
+	 * Frames from now on carry this board tick, bulk data frames excepted.
+	 * -1 for frames without a tick.
+	 */
+	FrameStreams tick(long tick) {
+		this.tick = tick;
+		return this;
+	}
+
+	/** frames from now on report this probe resolution, 9 to 12 bits */
+	FrameStreams resolution(int bits) {
+		this.resolutionBits = bits;
+		return this;
+	}
+
+	int getFrameCount() {
+		return frames;
+	}
+
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+	/** a reading that decodes to a plausible fridge to room temperature */
+	int randomRaw() {
+		return (random.nextInt(40 * 16) - 5 * 16) & 0xffff;
+	}
+
+	FrameStreams singleReading(int raw) {
+		byte[] payload = newPayload(MT_SINGLE_READING);
+		payload[3] = (byte) raw;
+		payload[4] = (byte) (raw >> 8);
+		return frame(payload);
+	}
+
+	FrameStreams singleReadings(int count) {
+		for(int i = 0; i < count; i++) {
+			singleReading(randomRaw());
+		}
+		return this;
+	}
+
+	/** readingCount readings, one second apart, packed into MT_MULTI_READING frames */
+	FrameStreams multiReadings(int readingCount) {
+		int remaining = readingCount;
+		while(remaining > 0) {
+			int n = Math.min(remaining, tick >= 0 ? OWTemperatureSensor.MAX_READINGS_PER_MULTI_WITH_TICK
+					: OWTemperatureSensor.MAX_READINGS_PER_MULTI);
+			byte[] payload = newPayload(MT_MULTI_READING);
+			payload[3] = (byte) n;
+			for(int i = 0; i < n; i++) {
+				int raw = randomRaw();
+				int age = (n - 1 - i) * 1000;
+				payload[4 + 4 * i] = (byte) raw;
+				payload[5 + 4 * i] = (byte) (raw >> 8);
+				payload[6 + 4 * i] = (byte) age;
+				payload[7 + 4 * i] = (byte) (age >> 8);
+			}
+			frame(payload);
+			remaining -= n;
+		}
+		return this;
+	}
+
+	/**
+	 * One MT_MULTI_PROBE frame with a reading from each of probeCount probes.
+	 * Probe i has serial number i + 1.
+	 */
+	FrameStreams multiProbe(int probeCount) {
+		int n = Math.min(probeCount, OWTemperatureSensor.MAX_PROBES_PER_FRAME);
+		byte[] payload = newPayload(MT_MULTI_PROBE);
+		payload[3] = (byte) n;
+		for(int i = 0; i < n; i++) {
+			int entry = 4 + 12 * i;
+			byte[] rom = romId(i + 1);
+			System.arraycopy(rom, 0, payload, entry, rom.length);
+			int raw = randomRaw();
+			int age = 10 * i; // probes are read one after the other
+			payload[entry + 8] = (byte) raw;
+			payload[entry + 9] = (byte) (raw >> 8);
+			payload[entry + 10] = (byte) age;
+			payload[entry + 11] = (byte) (age >> 8);
+		}
+		return frame(payload);
+	}
+
+	FrameStreams multiProbes(int probeCount, int frameCount) {
+		for(int i = 0; i < frameCount; i++) {
+			multiProbe(probeCount);
+		}
+		return this;
+	}
+
+	/** a DS18B20 ROM ID in bus order: family code, 48 bit serial, ROM crc */
+	static byte[] romId(long serial) {
+		byte[] rom = new byte[8];
+		rom[0] = (byte) DS18B20_FAMILY_CODE;
+		for(int i = 1; i < 7; i++) {
+			rom[i] = (byte) (serial >> (8 * (i - 1)));
+		}
+		ByteBuffer view = ByteBuffer.wrap(rom).order(ByteOrder.LITTLE_ENDIAN);
+		rom[7] = (byte) FrameCheck.crc8(view, 0, 7);
+		return rom;
+	}
+
+	/** a complete log download of sampleCount readings, see BulkTransferAssembler */
+	FrameStreams bulkTransfer(String fileName, int sampleCount, int intervalSecs) {
+		byte[] payload = newPayload(MT_BULK_TRANSFER);
+		payload[BulkTransferAssembler.RECORD_TYPE_INDEX] = BulkTransferAssembler.BULK_START;
+		byte[] name = fileName.getBytes();
+		System.arraycopy(name, 0, payload, BulkTransferAssembler.FILENAME_INDEX,
+				Math.min(name.length, BulkTransferAssembler.FILENAME_SIZE));
+		putUInt32(payload, BulkTransferAssembler.START_AGE_INDEX, (long) sampleCount * intervalSecs);
+		payload[BulkTransferAssembler.START_INTERVAL_INDEX] = (byte) intervalSecs;
+		payload[BulkTransferAssembler.START_INTERVAL_INDEX + 1] = (byte) (intervalSecs >> 8);
+		putUInt32(payload, BulkTransferAssembler.START_COUNT_INDEX, sampleCount);
+		frame(payload);
+
+		int remaining = sampleCount;
+		while(remaining > 0) {
+			int n = Math.min(remaining, BulkTransferAssembler.MAX_SAMPLES_PER_FRAME);
+			payload = newPayload(MT_BULK_TRANSFER);
+			payload[BulkTransferAssembler.RECORD_TYPE_INDEX] = BulkTransferAssembler.BULK_DATA;
+			payload[BulkTransferAssembler.DATA_COUNT_INDEX] = (byte) n;
+			for(int i = 0; i < n; i++) {
+				int raw = randomRaw();
+				payload[BulkTransferAssembler.DATA_SAMPLES_INDEX + 2 * i] = (byte) raw;
+				payload[BulkTransferAssembler.DATA_SAMPLES_INDEX + 2 * i + 1] = (byte) (raw >> 8);
+			}
+			frame(payload);
+			remaining -= n;
+		}
+
+		payload = newPayload(MT_BULK_TRANSFER);
+		payload[BulkTransferAssembler.RECORD_TYPE_INDEX] = BulkTransferAssembler.BULK_END;
+		putUInt32(payload, BulkTransferAssembler.END_COUNT_INDEX, sampleCount);
+		return frame(payload);
+	}
+
+	/** seq nos of frames the board sent but that never arrived */
+	FrameStreams skipSeqNos(int count) {
+		seqNo += count;
+		return this;
+	}
+
+	/**
+	 * The board's answer to MT_RESEND: count readings, one second apart,
+	 * for the seq nos from firstSeqNo on. Resent frames do not take a seq no.
+	 */
+	FrameStreams resentReadings(int firstSeqNo, int count) {
+		int n = Math.min(count, OWTemperatureSensor.MAX_READINGS_PER_MULTI);
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		payload[0] = (byte) ((crc8 ? MT_RESENT_READINGS | FRAME_CHECK_CRC8 : MT_RESENT_READINGS)
+				| (12 - resolutionBits) << FRAME_RESOLUTION_SHIFT);
+		payload[1] = (byte) firstSeqNo;
+		payload[2] = (byte) (firstSeqNo >> 8);
+		payload[3] = (byte) n;
+		for(int i = 0; i < n; i++) {
+			int raw = randomRaw();
+			int age = (seqNo - firstSeqNo - i) * 1000;
+			payload[4 + 4 * i] = (byte) raw;
+			payload[5 + 4 * i] = (byte) (raw >> 8);
+			payload[6 + 4 * i] = (byte) age;
+			payload[7 + 4 * i] = (byte) (age >> 8);
+		}
+		return frame(payload);
+	}
+
+	/** random bytes that never contain a sync run */
+	FrameStreams noise(int length) {
+		for(int i = 0; i < length; i++) {
+			int b = random.nextInt(256);
+			out.write(b == SYNC_BYTE ? 0 : b);
+		}
+		return this;
+	}
+
+	/** a single reading whose crc does not match */
+	FrameStreams corruptReading() {
+		byte[] payload = newPayload(MT_SINGLE_READING);
+		int raw = randomRaw();
+		payload[3] = (byte) raw;
+		payload[4] = (byte) (raw >> 8);
+		payload[PAYLOAD_SIZE - 1] = crc(payload);
+		payload[3 + random.nextInt(PAYLOAD_SIZE - 4)] ^= 1 << random.nextInt(8);
+		return writeFrame(payload);
+	}
+
+	/**
+	 * A single reading of which only the sync run and the first keep payload
+	 * bytes arrived, as when the link drops bytes. The next frame follows
+	 * right away, inside what the driver takes for this frame's payload.
+	 */
+	FrameStreams truncatedReading(int keep) {
+		byte[] payload = newPayload(MT_SINGLE_READING);
+		int raw = randomRaw();
+		payload[3] = (byte) raw;
+		payload[4] = (byte) (raw >> 8);
+		payload[PAYLOAD_SIZE - 1] = crc(payload);
+		for(int i = 0; i < NO_OF_SYNC_BYTES; i++) {
+			out.write(SYNC_BYTE);
+		}
+		out.write(payload, 0, Math.min(keep, PAYLOAD_SIZE));
+		++frames;
+		return this;
+	}
+
+	/**
+	 * Splits the stream into packets the way the Bluetooth stack hands them
+	 * to the driver: maxChunk bytes at most, or a random size up to maxChunk
+	 * when randomSizes is set.
+	 */
+	List<SensorDataPacket> toPackets(int maxChunk, boolean randomSizes) {
+		return split(toByteArray(), maxChunk, randomSizes, random);
+	}
+
+	static List<SensorDataPacket> split(byte[] all, int maxChunk, boolean randomSizes, Random random) {
+		List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+		int pos = 0;
+		while(pos < all.length) {
+			int len = Math.min(all.length - pos, randomSizes ? 1 + random.nextInt(maxChunk) : maxChunk);
+			byte[] chunk = new byte[len];
+			System.arraycopy(all, pos, chunk, 0, len);
+			packets.add(new SensorDataPacket(chunk, 0));
+			pos += len;
+		}
+		return packets;
+	}
+
+	private byte[] newPayload(int msgType) {
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		++seqNo;
+		payload[0] = (byte) ((crc8 ? msgType | FRAME_CHECK_CRC8 : msgType)
+				| (12 - resolutionBits) << FRAME_RESOLUTION_SHIFT);
+		payload[1] = (byte) seqNo;
+		payload[2] = (byte) (seqNo >> 8);
+		return payload;
+	}
+
+	private FrameStreams frame(byte[] payload) {
+		boolean bulkData = (payload[0] & 0x0f) == MT_BULK_TRANSFER
+				&& payload[BulkTransferAssembler.RECORD_TYPE_INDEX] == BulkTransferAssembler.BULK_DATA;
+		if(tick >= 0 && !bulkData) {
+			payload[0] |= FRAME_HAS_TICK;
+			putUInt32(payload, TICK_INDEX, tick);
+		}
+		if((payload[0] & 0xff) == SYNC_BYTE) {
+			// the driver would skip it as a sync byte, and the board never sends it
+			throw new IllegalStateException("reserved msg type 0x" + Integer.toHexString(SYNC_BYTE));
+		}
+		payload[PAYLOAD_SIZE - 1] = crc(payload);
+		return writeFrame(payload);
+	}
+
+	private FrameStreams writeFrame(byte[] payload) {
+		for(int i = 0; i < NO_OF_SYNC_BYTES; i++) {
+			out.write(SYNC_BYTE);
+		}
+		out.write(payload, 0, payload.length);
+		++frames;
+		return this;
+	}
+
+	static byte crc(byte[] payload) {
+		ByteBuffer view = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		if((payload[0] & FRAME_CHECK_CRC8) != 0) {
+			return (byte) FrameCheck.crc8(view, 0, PAYLOAD_SIZE - 1);
+		}
+		return (byte) FrameCheck.xor(view, 0, PAYLOAD_SIZE - 1);
+	}
+
+	private static void putUInt32(byte[] buf, int index, long value) {
+		buf[index] = (byte) value;
+		buf[index + 1] = (byte) (value >> 8);
+		buf[index + 2] = (byte) (value >> 16);
+		buf[index + 3] = (byte) (value >> 24);
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorDataParseResponse;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+/**
+ * Drives synthetic frame streams through OWTemperatureSensor.getSensorData,
+ * i.e. parseData, processCompletePacket and the output Bundles.
+ *
+ * Each invocation parses the whole stream once. The "frames" and "readings"
+ * counters are reported as rates, so ns/frame is 1e9 / frames. Run with
+ * -prof gc (the default for the jmh task) for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	public enum Scenario {
+		/** single readings in one packet per frame */
+		LIVE,
+		/** single readings split into random packets of up to 64 bytes */
+		FRAGMENTED,
+		/** random non-sync bytes between frames */
+		NOISY,
+		/** every fourth frame fails the crc check */
+		CRC_FAILURES,
+		/** a full log download after a long disconnect */
+		BULK_BACKLOG,
+		/** full MT_MULTI_READING frames */
+		MULTI_READING,
+		/** MT_MULTI_PROBE frames from a board with three probes */
+		MULTI_PROBE
+	}
+
+	@Param
+	public Scenario scenario;
+
+	/** frames (or bulk frames) per invocation */
+	@Param({ "1", "64", "1024" })
+	public int frames;
+
+	/** CRC-8/MAXIM checked frames instead of xor */
+	@Param({ "false", "true" })
+	public boolean crc8;
+
+	/** one SampleBatch Bundle per call instead of a String Bundle per reading */
+	@Param({ "false", "true" })
+	public boolean packed;
+
+	private List<SensorDataPacket> packets;
+	private int frameCount;
+	private OWTemperatureSensor sensor;
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long frames;
+		public long readings;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			frames = 0;
+			readings = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		FrameStreams stream = new FrameStreams(42).useCrc8(crc8);
+		switch(scenario) {
+		case LIVE:
+			stream.singleReadings(frames);
+			packets = stream.toPackets(FrameStreams.FRAME_SIZE, false);
+			break;
+		case FRAGMENTED:
+			stream.singleReadings(frames);
+			packets = stream.toPackets(64, true);
+			break;
+		case NOISY:
+			for(int i = 0; i < frames; i++) {
+				stream.noise(32).singleReadings(1);
+			}
+			packets = stream.toPackets(FrameStreams.FRAME_SIZE, false);
+			break;
+		case CRC_FAILURES:
+			for(int i = 0; i < frames; i++) {
+				if(i % 4 == 3) {
+					stream.corruptReading();
+				}
+				else {
+					stream.singleReadings(1);
+				}
+			}
+			packets = stream.toPackets(FrameStreams.FRAME_SIZE, false);
+			break;
+		case BULK_BACKLOG:
+			// START and END frames plus (frames - 2) full data frames
+			int samples = Math.max(1, frames - 2) * BulkTransferAssembler.MAX_SAMPLES_PER_FRAME;
+			stream.bulkTransfer("LOG00001.TXT", samples, 60);
+			packets = stream.toPackets(1024, false);
+			break;
+		case MULTI_READING:
+			stream.multiReadings(frames * OWTemperatureSensor.MAX_READINGS_PER_MULTI);
+			packets = stream.toPackets(FrameStreams.FRAME_SIZE, false);
+			break;
+		case MULTI_PROBE:
+			stream.multiProbes(3, frames);
+			packets = stream.toPackets(FrameStreams.FRAME_SIZE, false);
+			break;
+		}
+		frameCount = stream.getFrameCount();
+		sensor = new OWTemperatureSensor();
+		if(packed) {
+			sensor.configureCmd(OWTemperatureSensor.SETTING_PACKED_OUTPUT, null);
+		}
+	}
+
+	@Benchmark
+	public SensorDataParseResponse getSensorData(Counters counters) {
+		SensorDataParseResponse response = sensor.getSensorData(Long.MAX_VALUE, packets, null);
+		counters.frames += frameCount;
+		if(packed) {
+			for(Bundle batch : response.getSensorData()) {
+				counters.readings += batch.getInt(SampleBatch.KEY_COUNT);
+			}
+		}
+		else {
+			counters.readings += response.getSensorData().size();
+		}
+		return response;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorDataParseResponse;
+
+/**
+ * Feeds recorded or synthetic byte streams through
+ * OWTemperatureSensor.getSensorData as fast as possible and reports what the
+ * driver made of them. No phone or board needed.
+ *
+ * Usage: ReplayTool [options] (--synthetic FRAMES | FILE...)
+ *
+ * FILEs ending in CaptureLog.FILE_EXTENSION are replayed packet by packet as
+ * captured, anything else is read as raw bytes.
+ *
+ * Options:
+ *   --chunk N          re-split the input into packets of N bytes
+ *   --random-chunks    with --chunk, random packet sizes of 1..N bytes
+ *   --max-readings N   maxNumReadings per getSensorData call (0: no limit)
+ *   --repeat N         replay the input N times, e.g. for stable timings
+ *   --noise N          synthetic: N random non-sync bytes before each frame
+ *   --corrupt PERCENT  synthetic: percentage of frames with a bad crc
+ *   --truncate PERCENT synthetic: percentage of frames cut off after half the payload
+ *   --crc8             synthetic: CRC-8 instead of xor checked frames
+ *   --probes N         synthetic: MT_MULTI_PROBE frames with N probes each
+ *   --expect-readings N  exit with status 1 unless N readings were decoded
+ */
+public class ReplayTool {
+
+	private int chunk = 0;
+	private boolean randomChunks = false;
+	private long maxReadings = 0;
+	private int repeat = 1;
+	private int noise = 0;
+	private int corruptPercent = 0;
+	private int truncatePercent = 0;
+	private boolean crc8 = false;
+	private int probes = 0;
+	private long expectedReadings = -1;
+	private int syntheticFrames = -1;
+	private final List<String> files = new ArrayList<String>();
+
+	public static void main(String[] args) throws IOException {
+		ReplayTool tool = new ReplayTool();
+		if(!tool.parseArgs(args)) {
+			System.err.println("usage: ReplayTool [--chunk N] [--random-chunks] [--max-readings N] [--repeat N]\n"
+					+ "         [--noise N] [--corrupt PERCENT] [--truncate PERCENT] [--crc8] [--probes N]\n"
+					+ "         [--expect-readings N]\n"
+					+ "         (--synthetic FRAMES | FILE...)");
+			System.exit(2);
+		}
+		System.exit(tool.run() ? 0 : 1);
+	}
+
+	private boolean parseArgs(String[] args) {
+		try {
+			for(int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if(arg.equals("--chunk")) {
+					chunk = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--random-chunks")) {
+					randomChunks = true;
+				}
+				else if(arg.equals("--max-readings")) {
+					maxReadings = Long.parseLong(args[++i]);
+				}
+				else if(arg.equals("--repeat")) {
+					repeat = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--noise")) {
+					noise = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--corrupt")) {
+					corruptPercent = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--truncate")) {
+					truncatePercent = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--crc8")) {
+					crc8 = true;
+				}
+				else if(arg.equals("--probes")) {
+					probes = Integer.parseInt(args[++i]);
+				}
+				else if(arg.equals("--expect-readings")) {
+					expectedReadings = Long.parseLong(args[++i]);
+				}
+				else if(arg.equals("--synthetic")) {
+					syntheticFrames = Integer.parseInt(args[++i]);
+				}
+				else if(arg.startsWith("--")) {
+					return false;
+				}
+				else {
+					files.add(arg);
+				}
+			}
+		}
+		catch(RuntimeException e) {
+			return false;
+		}
+		return (syntheticFrames >= 0) != !files.isEmpty() && repeat > 0;
+	}
+
+	private boolean run() throws IOException {
+		List<SensorDataPacket> packets = loadInput();
+		long inputBytes = 0;
+		for(SensorDataPacket pkt : packets) {
+			inputBytes += pkt.getPayload().length;
+		}
+
+		OWTemperatureSensor sensor = new OWTemperatureSensor();
+		List<SensorDataPacket> single = new ArrayList<SensorDataPacket>(1);
+		List<SensorDataPacket> none = new ArrayList<SensorDataPacket>(0);
+		long readings = 0;
+		long calls = 0;
+		byte[] remaining = null;
+
+		long start = System.nanoTime();
+		for(int r = 0; r < repeat; r++) {
+			for(SensorDataPacket pkt : packets) {
+				single.clear();
+				single.add(pkt);
+				SensorDataParseResponse response = sensor.getSensorData(maxReadings, single, remaining);
+				readings += response.getSensorData().size();
+				remaining = response.getRemainingData();
+				++calls;
+			}
+		}
+		// drain what a reading limit held back
+		while(maxReadings > 0 && sensor.hasPendingReadings()) {
+			SensorDataParseResponse response = sensor.getSensorData(maxReadings, none, remaining);
+			if(response.getSensorData().isEmpty()) {
+				break;
+			}
+			readings += response.getSensorData().size();
+			remaining = response.getRemainingData();
+			++calls;
+		}
+		long elapsedNanos = System.nanoTime() - start;
+
+		DriverDiagnostics diag = sensor.getDiagnostics();
+		long frames = diag.getFramesOk() + diag.getFramesFailed() + diag.getFramesRejected()
+				+ diag.getFramesUnknownType();
+		double secs = elapsedNanos / 1e9;
+
+		System.out.println("input:      " + inputBytes + " bytes in " + packets.size() + " packets, "
+				+ repeat + " pass(es), " + calls + " getSensorData calls");
+		System.out.println("readings:   " + readings);
+		System.out.println("frames:     " + frames + " (ok " + diag.getFramesOk() + ", crc failed "
+				+ diag.getFramesFailed() + ", rejected " + diag.getFramesRejected() + ", unknown type "
+				+ diag.getFramesUnknownType() + ")");
+		System.out.println("resyncs:    " + diag.getResyncs() + " (" + diag.getDiscardedBytes()
+				+ " bytes discarded), " + diag.getRescanSyncs() + " of " + diag.getRescans()
+				+ " bad frames resynced in place");
+		System.out.println("left over:  " + (remaining == null ? 0 : remaining.length) + " bytes");
+		System.out.println(String.format("time:       %.1f ms", elapsedNanos / 1e6));
+		System.out.println(String.format("throughput: %.1f MB/s, %.0f frames/s, %.0f readings/s",
+				inputBytes * repeat / secs / 1e6, frames / secs, readings / secs));
+		// what fraction of the input ended up in good frames, independent of replay speed
+		System.out.println(String.format("goodput:    %.0f good frames/s, %.1f%% of the input bytes in good frames",
+				diag.getFramesOk() / secs, 100.0 * diag.getFramesOk() * FrameStreams.FRAME_SIZE
+						/ Math.max(1, inputBytes * repeat)));
+
+		if(expectedReadings >= 0 && readings != expectedReadings) {
+			System.out.println("FAILED: expected " + expectedReadings + " readings");
+			return false;
+		}
+		return true;
+	}
+
+	private List<SensorDataPacket> loadInput() throws IOException {
+		if(syntheticFrames >= 0) {
+			FrameStreams stream = new FrameStreams(42).useCrc8(crc8);
+			for(int i = 0; i < syntheticFrames; i++) {
+				stream.noise(noise);
+				// spreads the corrupt frames evenly
+				if((i * corruptPercent) / 100 != ((i + 1) * corruptPercent) / 100) {
+					stream.corruptReading();
+				}
+				else if((i * truncatePercent) / 100 != ((i + 1) * truncatePercent) / 100) {
+					stream.truncatedReading(FrameStreams.PAYLOAD_SIZE / 2);
+				}
+				else if(probes > 0) {
+					stream.multiProbe(probes);
+				}
+				else {
+					stream.singleReadings(1);
+				}
+			}
+			return stream.toPackets(chunk > 0 ? chunk : FrameStreams.FRAME_SIZE, randomChunks);
+		}
+
+		List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+		for(String name : files) {
+			File file = new File(name);
+			if(name.endsWith(CaptureLog.FILE_EXTENSION)) {
+				List<SensorDataPacket> captured = CaptureLog.readPackets(file);
+				if(chunk > 0) {
+					ByteArrayOutputStream raw = new ByteArrayOutputStream();
+					for(SensorDataPacket pkt : captured) {
+						raw.write(pkt.getPayload());
+					}
+					packets.addAll(FrameStreams.split(raw.toByteArray(), chunk, randomChunks, new Random(42)));
+				}
+				else {
+					packets.addAll(captured);
+				}
+			}
+			else {
+				packets.addAll(FrameStreams.split(readFile(file), chunk > 0 ? chunk : 1024, randomChunks,
+						new Random(42)));
+			}
+		}
+		return packets;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while((n = in.read(buf)) > 0) {
+				raw.write(buf, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+		return raw.toByteArray();
+	}
+}
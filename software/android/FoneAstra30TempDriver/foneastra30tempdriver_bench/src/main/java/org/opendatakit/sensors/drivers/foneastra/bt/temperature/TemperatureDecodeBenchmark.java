@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+/**
+ * Cost of decoding raw DS18B20 readings: the per-reading arithmetic
+ * getTempSample used to do, the TempDecodeTable lookups, the batch decode of
+ * a full bulk frame and the complete sample Bundle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemperatureDecodeBenchmark {
+
+	private OWTemperatureSensor sensor;
+	private int raw;
+	private final int[] frameRaw = new int[BulkTransferAssembler.MAX_SAMPLES_PER_FRAME];
+	private final float[] frameValues = new float[BulkTransferAssembler.MAX_SAMPLES_PER_FRAME];
+
+	@Setup
+	public void setup() {
+		sensor = new OWTemperatureSensor();
+		for(int i = 0; i < frameRaw.length; i++) {
+			frameRaw[i] = (i * 37) & 0xfff;
+		}
+	}
+
+	// walks through positive and negative readings
+	private int nextRaw() {
+		raw = (raw + 37) & 0xfff;
+		return raw;
+	}
+
+	@Benchmark
+	public String stringLegacy() {
+		return legacyString(nextRaw());
+	}
+
+	@Benchmark
+	public String string() {
+		return TempDecodeTable.string(nextRaw());
+	}
+
+	@Benchmark
+	public float valueLegacy() {
+		int concat = nextRaw();
+		boolean negative = (concat & 0x800) == 0x800;
+		if(negative) {
+			concat = ~concat + 1;
+		}
+		float temp = 0.0625F * (0x7FF & concat);
+		return negative ? -temp : temp;
+	}
+
+	@Benchmark
+	public float value() {
+		return TempDecodeTable.value(nextRaw());
+	}
+
+	/** one full bulk data frame */
+	@Benchmark
+	public float[] decodeFrame() {
+		TempDecodeTable.decode(frameRaw, 0, frameRaw.length, frameValues, 0);
+		return frameValues;
+	}
+
+	@Benchmark
+	public Bundle getTempSample() {
+		int r = nextRaw();
+		return sensor.getTempSample((byte) (r >> 8), (byte) r);
+	}
+
+	// getTempSample before TempDecodeTable
+	private static String legacyString(int raw) {
+		int concat = raw & 0xffff;
+		char signchr = '+';
+		if((concat & 0x800) == 0x800) {
+			concat = ~concat + 1;
+			signchr = '-';
+		}
+		float temp = 0.0625F * (0x7FF & concat);
+		return signchr + Float.toString(temp);
+	}
+}
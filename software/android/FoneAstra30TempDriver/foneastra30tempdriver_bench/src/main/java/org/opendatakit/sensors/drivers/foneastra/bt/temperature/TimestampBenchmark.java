@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.opendatakit.sensors.drivers.foneastra.bt.temperature;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.SimpleTimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the sample timestamp encoder/parser with the implementation it
+ * replaced, which built a new Calendar and SimpleDateFormat on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+
+	private static final String MILLI_TO_NANO_TIMESTAMP_EXTENSION = "000000";
+
+	private long timeMillis;
+	private String timeNanos;
+
+	@Setup
+	public void setup() {
+		timeMillis = System.currentTimeMillis();
+		timeNanos = OWTemperatureSensor.nanoSecondsFromMillis(timeMillis);
+	}
+
+	@Benchmark
+	public String formatLegacy() {
+		timeMillis += 1000;
+		return legacyNanoSecondsFromMillis(timeMillis);
+	}
+
+	@Benchmark
+	public String format() {
+		timeMillis += 1000;
+		return OWTemperatureSensor.nanoSecondsFromMillis(timeMillis);
+	}
+
+	@Benchmark
+	public long parseLegacy() {
+		return legacyMilliSecondsFromNanos(timeNanos);
+	}
+
+	@Benchmark
+	public long parse() {
+		return OWTemperatureSensor.milliSecondsFromNanos(timeNanos);
+	}
+
+	// the pre-TimestampFormatter implementation, kept here as the baseline
+	static String legacyNanoSecondsFromMillis(long timeMillis) {
+		Calendar c = GregorianCalendar.getInstance(new SimpleTimeZone(0,"UT"));
+		SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		sf.setCalendar(c);
+		Date d = new Date(timeMillis);
+		return sf.format(d) + MILLI_TO_NANO_TIMESTAMP_EXTENSION;
+	}
+
+	static long legacyMilliSecondsFromNanos(String timeNanos) {
+		Calendar c = GregorianCalendar.getInstance(new SimpleTimeZone(0,"UT"));
+		SimpleDateFormat sf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+		sf.setCalendar(c);
+		String truncated = timeNanos.substring(0, timeNanos.length()-MILLI_TO_NANO_TIMESTAMP_EXTENSION.length());
+		try {
+			return sf.parse(truncated).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Unrecognized time format: " + timeNanos);
+		}
+	}
+}
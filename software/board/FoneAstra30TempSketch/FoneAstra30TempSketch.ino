@@ -35,13 +35,56 @@ const int MSG_DATA_BEGIN_INDEX = PAYLOAD_BEGIN_INDEX + 3;
 
 //message types
 const int MT_SINGLE_READING = 1; //1 temp reading per msg
+//high bit of MSG_TYPE: the CRC byte is a CRC-8/MAXIM (OneWire::crc8) instead of an xor
+const uint8_t FRAME_CHECK_CRC8 = 0x80;
+//next bit of MSG_TYPE: the 4 bytes before the CRC hold millis() (little endian), so the phone can
+//map ages and reading times onto its own clock. for MT_SINGLE_READING it is when the reading was
+//taken, for msgs with ages when the msg was sent
+const uint8_t FRAME_HAS_TICK = 0x40;
+const int TICK_INDEX = MAX - 1 - 4;
+//the 2 bits below hold 12 minus the probe resolution in bits
+const int FRAME_RESOLUTION_SHIFT = 4;
 //const int MT_BULK_TRANSFER = 2; //variable size. will have more metadata
-//const int MT_COLLECT_ALL = 3;
+//const int MT_COLLECT_ALL = 3; //no log is stored, so there is nothing to transfer
 //const int MT_COLLECT_ONE = 4;
 //const int MT_DELETE_ALL = 5;
 //const int MT_DELETE_ONE = 6;
+//const int MT_MULTI_READING = 7; //readings with ages in one msg. the phone parses it, not sent yet
+const int MT_MULTI_PROBE = 8; //one reading from each probe on the bus
+const int MT_RESEND = 9; //host -> board. resend the readings of a range of seq nos
+const int MT_RESENT_READINGS = 10; //readings of earlier seq nos, resent on MT_RESEND
+const int MT_SET_RESOLUTION = 11; //host -> board. probe resolution and sampling interval
+
+//payload structure of MT_MULTI_PROBE is:
+//MSG_TYPE (1 byte), SEQ_NO (2 bytes), N (1 byte), N x (ROM ID (8 bytes), reading lo, reading hi, age lo, age hi), CRC (1 byte)
+//age is the number of millisecs between reading the probe and sending the msg
+const int ROM_ID_SIZE = 8;
+const int PROBE_ENTRY_SIZE = ROM_ID_SIZE + 4;
+const int MAX_PROBES = 8;
+
+//commands from the host: sync bytes, MSG_TYPE, 4 bytes of arguments, xor of MSG_TYPE and arguments.
+//arguments of MT_RESEND are: first SEQ_NO (2 bytes), number of SEQ_NOs (2 bytes)
+//arguments of MT_SET_RESOLUTION are: resolution in bits (1 byte, 9 - 12), 0 (1 byte), sampling interval
+//in millisecs (2 bytes). a conversion takes 750 ms at 12 bits and half as long per bit less; the
+//interval is never shorter than that, and 0 samples back to back
+const int CMD_SYNC_BYTES = 4;
+const int CMD_SIZE = 1 + 4 + 1;
+
+//payload structure of MT_RESENT_READINGS is:
+//MSG_TYPE (1 byte), SEQ_NO of the first reading (2 bytes), N (1 byte), N x (reading lo, reading hi, age lo, age hi), CRC (1 byte)
+//single probe boards keep their last RESEND_HISTORY readings for this, which covers frames lost on the
+//link. the age is 16 bits of millisecs, so readings older than 65 seconds are not resent
+const int RESEND_HISTORY = 48;
+//when true, a single probe board also samples (and numbers its readings) while no phone is connected,
+//so the readings of a short dropout can be resent. it keeps converting all the time then, which costs
+//power, so by default the board samples only while a phone is connected
+const bool SAMPLE_WHILE_DISCONNECTED = false;
+const int RESENT_ENTRY_SIZE = 4;
 
 const int SAMPLING_INTERVAL = 1000; //millisecs.
+const uint8_t MIN_RESOLUTION = 9;
+const uint8_t MAX_RESOLUTION = 12;
+const unsigned long MAX_CONVERSION_TIME = 750; //millisecs at MAX_RESOLUTION
 
 // 1-wire sensors are connected on ONEWIRE_PIN
 OneWire  owTempSensor(ONEWIRE_PIN); 
@@ -49,10 +92,25 @@ OneWire  owTempSensor(ONEWIRE_PIN);
 
 uint8_t dataArray[MAX];
 uint16_t counter = 0;
-uint8_t msgType = MT_SINGLE_READING;
 uint8_t present = 0;
 uint8_t owbData[12];
 uint8_t addr[8];
+uint8_t probeAddr[MAX_PROBES][ROM_ID_SIZE];
+uint8_t probeCount = 0;
+
+uint16_t historyRaw[RESEND_HISTORY];
+unsigned long historyTime[RESEND_HISTORY];
+uint8_t historyCount = 0;
+uint8_t historyHead = 0; //slot of the reading numbered counter
+
+//probes power up at the resolution in their EEPROM, 12 bits from the factory. MT_SET_RESOLUTION
+//only changes the scratchpad, so a restarted board is back at 12 bits
+uint8_t resolution = MAX_RESOLUTION;
+unsigned long samplingInterval = SAMPLING_INTERVAL;
+
+uint8_t cmdBuffer[CMD_SIZE];
+uint8_t cmdSyncCount = 0;
+uint8_t cmdLength = 0;
 
 void setup(void) {
 	//set up the HW UART to communicate with the BT module
@@ -131,7 +189,17 @@ void loop(void) {
 	byte i; 
 	float celsius;
 
-	if(present && (digitalRead(INT0_PIN) == HIGH)) {
+	readCommands();
+
+	//boards sample only while a phone is connected, unless SAMPLE_WHILE_DISCONNECTED (single probe only)
+	if(present && ((SAMPLE_WHILE_DISCONNECTED && probeCount == 1) || digitalRead(INT0_PIN) == HIGH)) {
+
+		//boards with a single probe keep sending MT_SINGLE_READING
+		if(probeCount > 1) {
+			unsigned long sensorReadTime = sendMultiProbeReadings();
+			waitForNextSample(sensorReadTime);
+			return;
+		}
 
 		unsigned long startreading = millis();
 
@@ -161,15 +229,22 @@ void loop(void) {
 
 		celsius = (float)raw / 16.0;
 
+		++counter;
+		historyHead = (historyHead + 1) % RESEND_HISTORY;
+		historyRaw[historyHead] = raw;
+		historyTime[historyHead] = millis();
+		if(historyCount < RESEND_HISTORY) {
+			++historyCount;
+		}
+
 		//send data over BT if there is an active connection
 		if(digitalRead(INT0_PIN) == HIGH)  {
-			
-			++counter;
 
-			dataArray[PAYLOAD_BEGIN_INDEX] = msgType;
+			dataArray[PAYLOAD_BEGIN_INDEX] = frameType(MT_SINGLE_READING);
 			memcpy(&dataArray[PAYLOAD_BEGIN_INDEX + 1], &counter,sizeof(counter));
 			dataArray[MSG_DATA_BEGIN_INDEX] = owbData[0];
 			dataArray[MSG_DATA_BEGIN_INDEX+1] = owbData[1];
+			memcpy(&dataArray[TICK_INDEX], &historyTime[historyHead], 4);
 			uint8_t crc = getCRC(dataArray);
 			dataArray[MAX -1] = crc;					
 
@@ -184,7 +259,7 @@ void loop(void) {
 //			dbgSerial.println();
 		}
 
-		delay(SAMPLING_INTERVAL - sensorReadTime);
+		waitForNextSample(sensorReadTime);
 	}
 
 	else {
@@ -195,19 +270,215 @@ void loop(void) {
 	}
 }
 
+//converts on all probes at once, then reads each one and sends all readings
+//in one MT_MULTI_PROBE msg. returns the millisecs spent on the 1-Wire bus.
+unsigned long sendMultiProbeReadings(void) {
+	unsigned long startreading = millis();
+	unsigned long readTime[MAX_PROBES];
+
+	owTempSensor.reset();
+	owTempSensor.skip();
+	owTempSensor.write(0x44,1);         // start conversion on every probe
+
+	// reads 0 until all probes are done
+	while (!owTempSensor.read()) {
+		delay(10);
+	}
+
+	uint8_t *entry = &dataArray[MSG_DATA_BEGIN_INDEX + 1];
+	for (uint8_t p = 0; p < probeCount; p++) {
+		owTempSensor.reset();
+		owTempSensor.select(probeAddr[p]);
+		owTempSensor.write(0xBE);         // Read Scratchpad
+
+		for (byte i = 0; i < 9; i++) {
+			owbData[i] = owTempSensor.read();
+		}
+		readTime[p] = millis();
+
+		memcpy(entry, probeAddr[p], ROM_ID_SIZE);
+		entry[ROM_ID_SIZE] = owbData[0];
+		entry[ROM_ID_SIZE + 1] = owbData[1];
+		entry += PROBE_ENTRY_SIZE;
+	}
+
+	unsigned long sensorReadTime = millis() - startreading;
+
+	//send data over BT if there is an active connection
+	if(digitalRead(INT0_PIN) == HIGH)  {
+
+		++counter;
+
+		dataArray[PAYLOAD_BEGIN_INDEX] = frameType(MT_MULTI_PROBE);
+		memcpy(&dataArray[PAYLOAD_BEGIN_INDEX + 1], &counter,sizeof(counter));
+		dataArray[MSG_DATA_BEGIN_INDEX] = probeCount;
+
+		unsigned long now = millis();
+		entry = &dataArray[MSG_DATA_BEGIN_INDEX + 1];
+		for (uint8_t p = 0; p < probeCount; p++) {
+			uint16_t age = now - readTime[p];
+			memcpy(&entry[ROM_ID_SIZE + 2], &age, sizeof(age));
+			entry += PROBE_ENTRY_SIZE;
+		}
+		memcpy(&dataArray[TICK_INDEX], &now, 4);
+
+		dataArray[MAX -1] = getCRC(dataArray);
+
+		Serial.write(dataArray,sizeof(dataArray));
+		Serial.flush();
+	}
+
+	return sensorReadTime;
+}
+
+//collects command bytes from the host as they arrive and runs complete commands
+void readCommands(void) {
+	while (Serial.available() > 0) {
+		uint8_t b = Serial.read();
+
+		if(cmdSyncCount < CMD_SYNC_BYTES) {
+			cmdSyncCount = (b == SYNC_BYTE) ? cmdSyncCount + 1 : 0;
+			continue;
+		}
+		//extra sync bytes before MSG_TYPE
+		if(cmdLength == 0 && b == SYNC_BYTE) {
+			continue;
+		}
+
+		cmdBuffer[cmdLength++] = b;
+		if(cmdLength == CMD_SIZE) {
+			uint8_t crc = 0;
+			for(int i = 0; i < CMD_SIZE - 1; i++) {
+				crc ^= cmdBuffer[i];
+			}
+			if(crc == cmdBuffer[CMD_SIZE - 1] && cmdBuffer[0] == MT_RESEND) {
+				uint16_t first = cmdBuffer[1] | (cmdBuffer[2] << 8);
+				uint16_t count = cmdBuffer[3] | (cmdBuffer[4] << 8);
+				sendResentReadings(first, count);
+			}
+			else if(crc == cmdBuffer[CMD_SIZE - 1] && cmdBuffer[0] == MT_SET_RESOLUTION) {
+				uint16_t interval = cmdBuffer[3] | (cmdBuffer[4] << 8);
+				setResolution(cmdBuffer[1], interval);
+			}
+			cmdSyncCount = 0;
+			cmdLength = 0;
+		}
+	}
+}
+
+//MSG_TYPE of a msg sent now. a MSG_TYPE equal to SYNC_BYTE (crc8, no tick, 10 bits, MT_RESENT_READINGS)
+//is reserved: the phone takes it for one more sync byte and loses the frame. every msg sent here has
+//FRAME_HAS_TICK set, which SYNC_BYTE has clear, so it is never sent. MT_BULK_TRANSFER data frames
+//(not sent by this sketch) must not use this: their samples fill the tick bytes, and the phone
+//ignores FRAME_HAS_TICK on them
+uint8_t frameType(uint8_t mt) {
+	return mt | FRAME_CHECK_CRC8 | FRAME_HAS_TICK | ((MAX_RESOLUTION - resolution) << FRAME_RESOLUTION_SHIFT);
+}
+
+//sleeps for what is left of the sampling interval after a reading that took sensorReadTime
+void waitForNextSample(unsigned long sensorReadTime) {
+	if(sensorReadTime < samplingInterval) {
+		delay(samplingInterval - sensorReadTime);
+	}
+}
+
+//writes the resolution into the config register of every probe on the bus. the alarm
+//registers in front of it are not used
+void setResolution(uint8_t bits, uint16_t interval) {
+	if(bits < MIN_RESOLUTION || bits > MAX_RESOLUTION || !present) {
+		return;
+	}
+
+	owTempSensor.reset();
+	owTempSensor.skip();
+	owTempSensor.write(0x4E);         // Write Scratchpad: TH, TL, config
+	owTempSensor.write(owbData[2]);
+	owTempSensor.write(owbData[3]);
+	owTempSensor.write(((bits - MIN_RESOLUTION) << 5) | 0x1f);
+
+	resolution = bits;
+	unsigned long conversionTime = MAX_CONVERSION_TIME >> (MAX_RESOLUTION - bits);
+	samplingInterval = interval > conversionTime ? interval : conversionTime;
+}
+
+//resends the readings of seq nos first .. first + count - 1 that are still in the history
+void sendResentReadings(uint16_t first, uint16_t count) {
+	if(probeCount != 1 || digitalRead(INT0_PIN) != HIGH) {
+		return;
+	}
+
+	//how far first is behind counter. nothing ahead of counter can be resent
+	uint16_t back = counter - first;
+	if(back >= 0x8000 || historyCount == 0) {
+		return;
+	}
+	//skip the start of the range if it is no longer in the history
+	if(back >= historyCount) {
+		uint16_t gone = back - (historyCount - 1);
+		if(gone >= count) {
+			return;
+		}
+		first += gone;
+		count -= gone;
+		back = historyCount - 1;
+	}
+	if(count > back + 1) {
+		count = back + 1;
+	}
+	//nor readings too old for their age to fit in 16 bits
+	unsigned long now = millis();
+	while(count > 0 && now - historyTime[(historyHead + RESEND_HISTORY - back) % RESEND_HISTORY] > 0xffff) {
+		++first;
+		--count;
+		--back;
+	}
+	if(count == 0) {
+		return;
+	}
+
+	dataArray[PAYLOAD_BEGIN_INDEX] = frameType(MT_RESENT_READINGS);
+	memcpy(&dataArray[PAYLOAD_BEGIN_INDEX + 1], &first, sizeof(first));
+	dataArray[MSG_DATA_BEGIN_INDEX] = count;
+
+	uint8_t *entry = &dataArray[MSG_DATA_BEGIN_INDEX + 1];
+	for (uint16_t i = 0; i < count; i++) {
+		uint8_t slot = (historyHead + RESEND_HISTORY - (back - i)) % RESEND_HISTORY;
+		uint16_t age = now - historyTime[slot];
+		memcpy(entry, &historyRaw[slot], 2);
+		memcpy(&entry[2], &age, sizeof(age));
+		entry += RESENT_ENTRY_SIZE;
+	}
+	memcpy(&dataArray[TICK_INDEX], &now, 4);
+
+	dataArray[MAX -1] = getCRC(dataArray);
+
+	Serial.write(dataArray,sizeof(dataArray));
+	Serial.flush();
+}
+
 void findSensorAndTurnBTOn(void) {
-	//find the temp sensor
+	//find the temp sensors. there may be several on the bus
 	present = 0;
-	present = owTempSensor.search(addr);
+	probeCount = 0;
+	owTempSensor.reset_search();
+
+	while (probeCount < MAX_PROBES && owTempSensor.search(addr)) {
+		if (OneWire::crc8(addr, 7) != addr[7]) {
+//			dbgSerial.println("owTempSensor->CRC not valid ");
+			continue;
+		}
 
-	if (OneWire::crc8(addr, 7) != addr[7]) {
-//		dbgSerial.println("owTempSensor->CRC not valid ");
-		present = 0;
+		if (addr[0] != 0x28) {
+//			dbgSerial.println("owTempSensor-> not a DS18b20 device ");
+			continue;
+		}
+
+		memcpy(probeAddr[probeCount++], addr, ROM_ID_SIZE);
 	}
 
-	if (addr[0] != 0x28) {
-//		dbgSerial.println("owTempSensor-> not a DS18b20 device ");
-		present = 0;
+	present = probeCount > 0;
+	if(present) {
+		memcpy(addr, probeAddr[0], ROM_ID_SIZE);
 	}
 
 	if(!present) {
@@ -223,10 +494,5 @@ void findSensorAndTurnBTOn(void) {
 }
 
 uint8_t getCRC(uint8_t *buff) {
-	uint8_t crc = 0;
-
-	for(int i = PAYLOAD_BEGIN_INDEX; i< MAX-1; i++) {
-		crc ^= buff[i]; 
-	}
-	return crc;
+	return OneWire::crc8(&buff[PAYLOAD_BEGIN_INDEX], PAYLOAD_SIZE - 1);
 }